@@ -0,0 +1,123 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class decides whether a server may take one more connection, from the
+ * number of active sessions and from the time connections wait in the accept
+ * queue. When over budget, the connection is to be refused with a BUSY reply
+ * telling the client when to retry, instead of being silently dropped and
+ * retransmitted again and again.
+ */
+public class AdmissionController {
+
+  /** The gain of the moving average of the accept queue latency. */
+  private static final double GAIN = 1.0 / 8;
+
+  /** The longest advised retry-after delay, in milliseconds. */
+  private static final int MAX_RETRY_AFTER = 60000;
+
+  private final int maxSessions;
+  private final long maxLatency;
+  private final int minRetryAfter;
+
+  /** The moving average of the accept queue latency, in milliseconds. */
+  private volatile double latency = 0;
+
+  /** When the average was last updated, in milliseconds. */
+  private volatile long updatedAt = System.currentTimeMillis();
+
+  /** The number of refused connections. */
+  private final AtomicLong refused = new AtomicLong();
+
+  /**
+   * Initializes a new admission controller.
+   *
+   * @param _maxSessions
+   *          the maximum number of active sessions
+   * @param _maxLatency
+   *          the maximum time a connection may wait in the accept queue, in
+   *          milliseconds
+   * @param _minRetryAfter
+   *          the shortest retry-after delay advised to a refused client, in
+   *          milliseconds
+   */
+  public AdmissionController(int _maxSessions, long _maxLatency,
+      int _minRetryAfter) {
+    this.maxSessions = _maxSessions;
+    this.maxLatency = _maxLatency;
+    this.minRetryAfter = _minRetryAfter;
+  }
+
+  /**
+   * Decides whether a new connection may be queued. A refusal is counted.
+   *
+   * @param activeSessions
+   *          the number of sessions currently open
+   * @param oldestWait
+   *          for how long the oldest pending connection has been waiting in
+   *          the accept queue, -1 if none, in milliseconds
+   * @return {@code true} if the connection is admitted
+   */
+  public boolean admit(int activeSessions, long oldestWait) {
+    if (oldestWait < 0)
+      decay();
+    if (activeSessions < this.maxSessions
+        && Math.max(this.latency, oldestWait) <= this.maxLatency)
+      return true;
+    this.refused.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Counts a connection refused for another reason, such as a full queue.
+   */
+  public void refuse() {
+    this.refused.incrementAndGet();
+  }
+
+  /**
+   * Records the time a connection has waited in the accept queue.
+   *
+   * @param waited
+   *          the time between its queuing and its acceptance, in milliseconds
+   */
+  public void accepted(long waited) {
+    // a lost update between concurrent acceptors only delays the average
+    this.latency += GAIN * (waited - this.latency);
+    this.updatedAt = System.currentTimeMillis();
+  }
+
+  /**
+   * Lets the average fall back while the accept queue is empty, by a factor of
+   * e every maximum latency since its last update: as it only moves on
+   * acceptances otherwise, a burst could leave it above the maximum with
+   * nothing left to accept, and every later connection would be refused.
+   */
+  private void decay() {
+    long now = System.currentTimeMillis();
+    long idle = now - this.updatedAt;
+    if (idle <= 0)
+      return;
+    this.latency *= Math.exp(-(double) idle / Math.max(1, this.maxLatency));
+    this.updatedAt = now;
+  }
+
+  /**
+   * @return the delay a refused client should wait before retrying, twice the
+   *         current accept queue latency, in milliseconds
+   */
+  public int retryAfter() {
+    return (int) Math.min(MAX_RETRY_AFTER,
+        Math.max(this.minRetryAfter, 2 * this.latency));
+  }
+
+  /** @return the moving average of the accept queue latency, in milliseconds */
+  public double getQueueLatency() {
+    return this.latency;
+  }
+
+  /** @return the number of refused connections */
+  public long getRefusedCount() {
+    return this.refused.get();
+  }
+
+}
@@ -0,0 +1,75 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of recyclable direct {@link ByteBuffer}s of a fixed capacity. Direct
+ * buffers are expensive to allocate but are handed to the kernel without any
+ * intermediate copy, so they are allocated once and then reused.
+ */
+public class BufferPool {
+
+  /** The capacity of every buffer of this pool. */
+  private final int bufferSize;
+
+  /** The maximum number of free buffers kept for reuse. */
+  private final int maxFree;
+
+  /** The buffers available for reuse. */
+  private final ConcurrentLinkedQueue<ByteBuffer> free;
+
+  /** The number of buffers in {@link #free}, cheaper than its size(). */
+  private final AtomicInteger freeCount;
+
+  /**
+   * Initializes an empty pool. Buffers are allocated on demand, and kept once
+   * released, up to the specified number.
+   *
+   * @param _bufferSize
+   *          the capacity of every buffer of this pool
+   * @param _maxFree
+   *          the maximum number of free buffers kept for reuse
+   */
+  public BufferPool(int _bufferSize, int _maxFree) {
+    this.bufferSize = _bufferSize;
+    this.maxFree = _maxFree;
+    this.free = new ConcurrentLinkedQueue<ByteBuffer>();
+    this.freeCount = new AtomicInteger();
+  }
+
+  /** @return the capacity of every buffer of this pool */
+  public int getBufferSize() {
+    return this.bufferSize;
+  }
+
+  /**
+   * Takes a buffer out of this pool, allocating a new one if none is free.
+   *
+   * @return a cleared buffer, to be given back with {@link #release}
+   */
+  public ByteBuffer acquire() {
+    ByteBuffer buffer = this.free.poll();
+    if (buffer == null)
+      return ByteBuffer.allocateDirect(this.bufferSize);
+    this.freeCount.decrementAndGet();
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * Gives a buffer back to this pool. The buffer must no longer be used by the
+   * caller.
+   *
+   * @param buffer
+   *          a buffer previously obtained by {@link #acquire}
+   */
+  public void release(ByteBuffer buffer) {
+    if (buffer.capacity() != this.bufferSize)
+      throw new IllegalArgumentException("buffer not from this pool");
+    if (this.freeCount.incrementAndGet() <= this.maxFree)
+      this.free.offer(buffer);
+    else
+      this.freeCount.decrementAndGet();
+  }
+
+}
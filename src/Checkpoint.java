@@ -0,0 +1,207 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+/**
+ * This class records which parts of a file being received are safely on the
+ * disk, in a file next to it, so that an interrupted transfer can be resumed
+ * instead of restarted from byte zero.
+ *
+ * The file being received is preallocated, so its length tells nothing; the
+ * checkpoint holds its final size, followed by the extents of data flushed to
+ * the disk, one per line as "start end". It is updated after each flush, and
+ * replaced atomically, so that a crash leaves either the old or the new one.
+ */
+public class Checkpoint {
+
+  /** Appended to the name of the file to get the name of its checkpoint. */
+  public static final String SUFFIX = ".part";
+
+  private final File file;
+  private final long size;
+
+  /** The start of each extent, mapped to its end. */
+  private final TreeMap<Long, Long> extents = new TreeMap<Long, Long>();
+
+  private Checkpoint(File _file, long _size) {
+    this.file = _file;
+    this.size = _size;
+  }
+
+  /**
+   * Starts a new checkpoint, with no data yet, deleting any previous one.
+   *
+   * @param dir
+   *          the directory of the received file
+   * @param name
+   *          the name of the received file
+   * @param size
+   *          the final size of the received file
+   * @return the new checkpoint
+   */
+  public static Checkpoint create(File dir, String name, long size) {
+    File file = new File(dir, name + SUFFIX);
+    file.delete();
+    return new Checkpoint(file, size);
+  }
+
+  /**
+   * Reads the checkpoint of a file.
+   *
+   * @param dir
+   *          the directory of the received file
+   * @param name
+   *          the name of the received file
+   * @return its checkpoint, or {@code null} if there is none or if it cannot
+   *         be read
+   */
+  public static Checkpoint load(File dir, String name) {
+    File file = new File(dir, name + SUFFIX);
+    if (!file.isFile())
+      return null;
+    try {
+      String[] lines = new String(Files.readAllBytes(file.toPath()),
+          StandardCharsets.US_ASCII).split("\n");
+      Checkpoint checkpoint = new Checkpoint(file, Long.parseLong(lines[0]));
+      for (int i = 1; i < lines.length; i++) {
+        String[] extent = lines[i].split(" ");
+        checkpoint.extents.put(Long.parseLong(extent[0]),
+            Long.parseLong(extent[1]));
+      }
+      return checkpoint;
+    } catch (IOException | RuntimeException e) {
+      System.err.println("ignoring checkpoint " + file + ": " + e);
+      return null;
+    }
+  }
+
+  /** @return the final size of the received file */
+  public long getSize() {
+    return this.size;
+  }
+
+  /** @return the length of the data safely received from byte zero on */
+  public synchronized long prefix() {
+    Long end = this.extents.get(0L);
+    return end == null ? 0 : end;
+  }
+
+  /** @return {@code true} once the whole file has been received */
+  public boolean isComplete() {
+    return prefix() >= this.size;
+  }
+
+  /**
+   * Records that some data is safely on the disk, and saves the checkpoint,
+   * unless the file is complete: the checkpoint is then to be deleted, and
+   * concurrent receivers of the same file must not write it again.
+   *
+   * @param start
+   *          the offset of the data
+   * @param end
+   *          the offset following the data
+   * @throws IOException
+   *           if the checkpoint cannot be saved
+   */
+  public synchronized void update(long start, long end) throws IOException {
+    if (end <= start)
+      return;
+    // merge with the extents it overlaps or touches
+    Map.Entry<Long, Long> before = this.extents.floorEntry(start);
+    if (before != null && before.getValue() >= start) {
+      start = before.getKey();
+      end = Math.max(end, before.getValue());
+    }
+    Map.Entry<Long, Long> next;
+    while ((next = this.extents.ceilingEntry(start)) != null
+        && next.getKey() <= end) {
+      end = Math.max(end, next.getValue());
+      this.extents.remove(next.getKey());
+    }
+    this.extents.put(start, end);
+    if (!isComplete())
+      save();
+  }
+
+  /** Writes the checkpoint aside, then replaces the previous one with it. */
+  private void save() throws IOException {
+    StringBuilder text = new StringBuilder().append(this.size).append('\n');
+    for (Map.Entry<Long, Long> extent : this.extents.entrySet())
+      text.append(extent.getKey()).append(' ').append(extent.getValue())
+          .append('\n');
+    File temporary = new File(this.file.getPath() + ".tmp");
+    try (FileChannel channel = FileChannel.open(temporary.toPath(),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer bytes = ByteBuffer
+          .wrap(text.toString().getBytes(StandardCharsets.US_ASCII));
+      while (bytes.hasRemaining())
+        channel.write(bytes);
+      channel.force(false);
+    }
+    Files.move(temporary.toPath(), this.file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /** Deletes the checkpoint, once the file is complete. */
+  public synchronized void delete() {
+    this.file.delete();
+  }
+
+  /**
+   * Computes the checksum of the beginning of a file, to be compared with the
+   * one of the same part of another copy.
+   *
+   * @param channel
+   *          the file
+   * @param length
+   *          the number of bytes to check, from byte zero on
+   * @return their CRC-32C, or -1 if the file is shorter
+   * @throws IOException
+   *           if the file cannot be read
+   */
+  public static long checksum(FileChannel channel, long length)
+      throws IOException {
+    CRC32C crc = new CRC32C();
+    ByteBuffer block = ByteBuffer.allocateDirect(64 * 1024);
+    long offset = 0;
+    while (offset < length) {
+      block.clear();
+      block.limit((int) Math.min(block.capacity(), length - offset));
+      int read = channel.read(block, offset);
+      if (read < 0)
+        return -1;
+      block.flip();
+      crc.update(block);
+      offset += read;
+    }
+    return crc.getValue();
+  }
+
+  /**
+   * Computes the checksum of the beginning of a file held in memory.
+   *
+   * @param content
+   *          the file, from byte zero on
+   * @param length
+   *          the number of bytes to check, at most the size of the file
+   * @return their CRC-32C
+   */
+  public static long checksum(ByteBuffer content, long length) {
+    CRC32C crc = new CRC32C();
+    ByteBuffer part = content.duplicate();
+    part.position(0);
+    part.limit((int) length);
+    crc.update(part);
+    return crc.getValue();
+  }
+
+}
@@ -0,0 +1,203 @@
+/**
+ * This class defines the congestion control of a connection: how many packets
+ * it may have in flight, below the size of its send window, after what the
+ * acks and the losses tell about the path.
+ *
+ * The losses are the retransmission timeouts, every packet being acked on its
+ * own. As several packets of a window are usually lost to the same
+ * congestion, the window is decreased once for all the packets sent before
+ * the previous decrease, as NewReno does; a packet lost again once
+ * retransmitted means a severe congestion, and the window goes down to its
+ * minimum.
+ *
+ * An instance belongs to a single connection, whose lock guards it.
+ */
+public abstract class CongestionControl {
+
+  /** The available algorithms. */
+  public enum Algorithm {
+    /** the whole send window, whatever the losses */
+    NONE,
+    /** slow start then additive increase, multiplicative decrease on loss */
+    AIMD,
+    /** keeps a few packets queued on the path, after the round trip time */
+    DELAY
+  }
+
+  /** The least congestion window, in packets. */
+  public static int MIN_WINDOW = 1;
+
+  /** The window kept after a loss, as a fraction of the window before it. */
+  public static double DECREASE = 0.5;
+
+  /** The congestion window, in packets. */
+  protected double window;
+
+  /** The window beyond which it grows linearly rather than exponentially. */
+  protected double threshold;
+
+  /** The largest window, the size of the send window. */
+  protected final int maxWindow;
+
+  /** The first packet number after the last decrease. */
+  private int recover = 0;
+
+  /**
+   * Creates the congestion control of a new connection.
+   *
+   * @param algorithm
+   *          the algorithm
+   * @param maxWindow
+   *          the size of the send window of the connection
+   * @return the new congestion control
+   */
+  public static CongestionControl create(Algorithm algorithm, int maxWindow) {
+    switch (algorithm) {
+    case AIMD:
+      return new Aimd(maxWindow);
+    case DELAY:
+      return new Delay(maxWindow);
+    default:
+      return new None(maxWindow);
+    }
+  }
+
+  protected CongestionControl(int _maxWindow) {
+    this.maxWindow = _maxWindow;
+    this.window = Math.min(_maxWindow, Math.max(MIN_WINDOW, 2));
+    this.threshold = _maxWindow;
+  }
+
+  /** @return the number of packets which may be in flight */
+  public int window() {
+    return (int) Math.max(MIN_WINDOW, Math.min(this.maxWindow, this.window));
+  }
+
+  /** @return the congestion window, in packets */
+  public double getWindow() {
+    return this.window;
+  }
+
+  /**
+   * Called when a packet is acked for the first time.
+   *
+   * @param rtt
+   *          its round trip time, in nanoseconds, or -1 if it has been
+   *          retransmitted, and so gives no sample
+   */
+  public abstract void onAck(long rtt);
+
+  /**
+   * Called when a packet has not been acked in time, before it is
+   * retransmitted.
+   *
+   * @param PN
+   *          its packet number
+   * @param next
+   *          the number of the next packet to be sent
+   * @param transmissions
+   *          the number of times it has been sent
+   */
+  public void onLoss(int PN, int next, int transmissions) {
+    if (transmissions > 1) {
+      this.threshold = Math.max(MIN_WINDOW, this.window * DECREASE);
+      this.window = MIN_WINDOW;
+      this.recover = next;
+    } else if (PN >= this.recover) {
+      this.window = Math.max(MIN_WINDOW, this.window * DECREASE);
+      this.threshold = this.window;
+      this.recover = next;
+    }
+  }
+
+  /** Grows the window by some packets, up to the send window. */
+  protected void grow(double packets) {
+    this.window = Math.min(this.maxWindow, this.window + packets);
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + " cwnd " + this.window + " ssthresh "
+        + this.threshold;
+  }
+
+  /** The whole send window, whatever happens. */
+  private static class None extends CongestionControl {
+    None(int _maxWindow) {
+      super(_maxWindow);
+      this.window = _maxWindow;
+    }
+
+    @Override
+    public void onAck(long rtt) {
+      // nothing to learn
+    }
+
+    @Override
+    public void onLoss(int PN, int next, int transmissions) {
+      // nothing to learn
+    }
+  }
+
+  /**
+   * One more packet per ack in slow start, that is twice as many per round
+   * trip, then one more per round trip.
+   */
+  private static class Aimd extends CongestionControl {
+    Aimd(int _maxWindow) {
+      super(_maxWindow);
+    }
+
+    @Override
+    public void onAck(long rtt) {
+      grow(this.window < this.threshold ? 1 : 1 / this.window);
+    }
+  }
+
+  /**
+   * As TCP Vegas, compares once per round trip the throughput expected from
+   * the least round trip time seen with the one got, whose difference tells
+   * how many packets wait in queues along the path, and keeps it between
+   * {@link #ALPHA} and {@link #BETA}. A loss is handled as by AIMD.
+   */
+  private static class Delay extends CongestionControl {
+    /** The bounds of the number of packets queued along the path. */
+    static final double ALPHA = 1, BETA = 3;
+
+    private long baseRtt = Long.MAX_VALUE;
+    /** the least round trip time of the current round, and its acks */
+    private long roundRtt = Long.MAX_VALUE;
+    private int acks = 0;
+
+    Delay(int _maxWindow) {
+      super(_maxWindow);
+    }
+
+    @Override
+    public void onAck(long rtt) {
+      if (rtt > 0) {
+        this.baseRtt = Math.min(this.baseRtt, rtt);
+        this.roundRtt = Math.min(this.roundRtt, rtt);
+      }
+      if (++this.acks < this.window)
+        return;
+      // the end of a round trip
+      if (this.roundRtt != Long.MAX_VALUE) {
+        double queued = this.window
+            * (1 - (double) this.baseRtt / this.roundRtt);
+        if (this.window < this.threshold) {
+          if (queued > ALPHA)
+            this.threshold = this.window; // the end of the slow start
+          else
+            grow(this.window);
+        } else if (queued < ALPHA)
+          grow(1);
+        else if (queued > BETA)
+          this.window = Math.max(MIN_WINDOW, this.window - 1);
+      }
+      this.acks = 0;
+      this.roundRtt = Long.MAX_VALUE;
+    }
+  }
+
+}
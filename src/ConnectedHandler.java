@@ -1,9 +1,12 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  *       ConnectedHandler
@@ -39,53 +42,371 @@ public class ConnectedHandler extends Handler
      * the two following parameters are suitable for manual experimentation and
      * automatic validation
      *
-     * delay before retransmitting a non acked message
+     * delay before retransmitting a non acked message, until the round trip
+     * time has been measured
      */
     private static final int DELAY = 1000;
 
+    /**
+     * bounds of the adaptive retransmission timeout, in milliseconds
+     */
+    private static final int MIN_DELAY = 10;
+    private static final int MAX_DELAY = 60000;
+
+    /**
+     * gains of the smoothed round trip time and of its variance (RFC 6298)
+     */
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+
+    /**
+     * the pace of the new packets is the congestion window per smoothed round
+     * trip time, times this gain, so that pacing alone does not slow them down
+     */
+    private static final double PACING_GAIN = 1.25;
+
+    /**
+     * shortest pause worth making between two packets, in nanoseconds, the
+     * packets being sent in small bursts below it
+     */
+    private static final long MIN_PAUSE = 200000;
+
+    /**
+     * longest delay between two probes of a closed receive window, in
+     * milliseconds, so that its opening is noticed soon enough
+     */
+    private static final int MAX_PROBE_DELAY = 250;
+
     /**
      * number of times a non acked message is sent before timeout
      */
     private static final int MAX_REPEAT = 10;
 
     /**
-     * A single Timer for all usages. Don't cancel it.
+     * Retransmission strategy of the send window.
+     *
+     * GO_BACK_N:           a single timer watches the oldest non acked packet,
+     *                      when it fires every non acked packet of the window is resent
+     * SELECTIVE_REPEAT:    every packet has its own timer and is resent alone
+     */
+    public enum Mode
+    {
+        GO_BACK_N, SELECTIVE_REPEAT
+    }
+
+    /**
+     * default sliding window parameters, used by the handlers created afterwards
+     *
+     * a WINDOW_SIZE of 1 gives back the original stop-and-wait behaviour
+     * a RECEIVE_WINDOW of 1 discards any out-of-order packet
+     */
+    public static Mode MODE = Mode.SELECTIVE_REPEAT;
+    public static int WINDOW_SIZE = 4;
+    public static int RECEIVE_WINDOW = 4;
+
+    /**
+     * wire format of the packets sent by the handlers created afterwards, TEXT
+     * for interoperability with the original implementation
+     *
+     * packets are always accepted in both formats
+     */
+    public static Header.Format FORMAT = Header.Format.TEXT;
+
+    /**
+     * congestion control of the handlers created afterwards, which keeps the
+     * packets in flight below the send window after the losses, see
+     * {@link CongestionControl}
+     */
+    public static CongestionControl.Algorithm CONGESTION = CongestionControl.Algorithm.AIMD;
+
+    /**
+     * whether the new packets are spread over the round trip time, rather than
+     * sent in a burst whenever the window opens
+     */
+    public static boolean PACING = true;
+
+    /**
+     * whether the handlers created afterwards offer, along their HELLO, ACKs
+     * which advertise the receive window, after the room left in the handler
+     * above, so that the remote never sends more than can be taken; the
+     * original implementation drops the offer, and keeps getting the plain
+     * ACKs it understands
+     *
+     * the ACKs advertise the window once the remote is known to run this
+     * code: its HELLO comes with the offer, or it sends BINARY packets or ACKs
+     * which advertise a window; unset, only if the handler itself sends
+     * BINARY packets
+     *
+     * a remote whose ACKs advertise nothing is not limited
+     */
+    public static boolean FLOW_CONTROL = true;
+
+    /**
+     * once windowed, the ACKs sent are cumulative, and carry the blocks of
+     * the packets received out of order; the packets received in order are
+     * acked every ACK_EVERY packets, or ACK_DELAY milliseconds after the first
+     * one not acked, well below the least retransmission timeout, unless
+     * packets are sent meanwhile, which carry the ACK, in either format
+     *
+     * a packet out of order, or already received, is acked at once
+     */
+    public static int ACK_EVERY = 2;
+    public static int ACK_DELAY = 2;
+
+    /**
+     * how long the constructor waits for the HELLO to be acked, in
+     * milliseconds, 0 for ever; once over, the handler is left unconnected,
+     * see {@link #isConnected}, and is to be closed
+     */
+    public static long CONNECT_TIMEOUT = 0;
+
+    /**
+     * A single timing wheel for all usages: scheduling and cancelling a
+     * retransmission costs O(1), whatever the number of packets in flight.
      **/
-    private static final Timer TIMER = new Timer("ConnectedHandler's Timer", true);
+    private static final TimingWheel TIMER = TimingWheel.SHARED;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
 
     private final int local_ID;
     private int remote_ID;
 
-    private volatile int local_packet_number; // the one I just sent to the Remote
-    private volatile int remote_packet_number; // the last one I got from the Remote
+    private final Mode mode;
+    private final Header.Format format;
+    private final Header header; // only used by handle(), on the processor thread
+    private final Segment[] send_window; // one reusable slot per packet in flight, indexed by PN % size
+    private volatile int send_base; // the oldest non acked one I sent to the Remote
+    private volatile int local_packet_number; // the next one I will send to the Remote
+    private final TimingWheel.Timeout window_timeout; // GO_BACK_N only
+
+    private double smoothed_rtt; // in milliseconds, negative until the first sample
+    private double rtt_variance;
+    private volatile long rto; // current retransmission timeout, in milliseconds
+
+    private final CongestionControl congestion; // guarded by the lock
+    private int send_limit; // the number following the last packet the Remote accepts, -1 until advertised
+    private int probes; // number of probes sent since the Remote's window closed
+    private final TimingWheel.Timeout probe_timeout;
+    private int advertised; // the number following the last packet I accept, as advertised to the Remote
+    private int updates; // number of checks of my window since the handler above has had no room
+    private final TimingWheel.Timeout update_timeout;
+    private long next_send_at; // System.nanoTime() before which no new packet is sent, when pacing
+
+    private final ByteBuffer[] receive_buffer; // packets received out of order, indexed by PN % size
+    private volatile int remote_packet_number; // the next one I expect from the Remote
+    private final TimingWheel.Timeout delivery_timeout; // retries the delivery to the app
+    private boolean delivering; // whether a thread is passing packets upwards, guarded by the lock
+    private int unacked; // number of packets received in order and not acked yet
+    private final TimingWheel.Timeout ack_timeout; // sends the delayed ACK
+    private final int[] sack; // the selective ACK blocks being sent, guarded by the lock
+
+    private volatile boolean windowed; // whether my ACKs advertise my window, see FLOW_CONTROL
+    private final ByteBuffer offer; // sent along every transmission of the HELLO, or null, see FLOW_CONTROL
+
     private final String destination;
     private Handler aboveHandler;
     private final Handler underHandler;
-    private final Object lock;
+    private final ReentrantLock lock; // not a monitor, so that a virtual thread waiting on it is not pinned
+    private final Condition window_moved; // signalled when packets are acked
+
+    /**
+     * A slot of the send window, holding a packet until it is acked. Slots and
+     * their timeouts are allocated once, and reused by every packet which
+     * falls in them. Guarded by the lock.
+     */
+    private class Segment
+    {
+        int PN;
+        ByteBuffer wire;
+        boolean acked;
+        int transmissions; // number of times it has been sent
+        long sent_at; // System.nanoTime() of the first transmission
+        final TimingWheel.Timeout timeout; // SELECTIVE_REPEAT only
+
+        Segment()
+        {
+            this.PN = -1;
+            this.acked = true;
+            this.timeout = new TimingWheel.Timeout(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    retransmit(Segment.this);
+                }
+            });
+        }
+    }
 
 
     /**
-     * Initializes a new connected handler with the specified parameters
+     * Initializes a new connected handler with the specified parameters, using
+     * the default {@link #MODE}, {@link #WINDOW_SIZE} and {@link #RECEIVE_WINDOW}
      *
      * @param _under       the {@link Handler} on which the new handler will be stacked
      * @param _localId     the connection Id used to identify this connected handler
      * @param _destination a {@code String} identifying the destination
      */
     public ConnectedHandler(final Handler _under, int _localId, String _destination)
+    {
+        this(_under, _localId, _destination, MODE, WINDOW_SIZE, RECEIVE_WINDOW);
+    }
+
+    /**
+     * Initializes a new connected handler with the specified parameters
+     *
+     * @param _under         the {@link Handler} on which the new handler will be stacked
+     * @param _localId       the connection Id used to identify this connected handler
+     * @param _destination   a {@code String} identifying the destination
+     * @param _mode          the retransmission strategy of the send window
+     * @param _windowSize    the maximum number of non acked packets in flight
+     * @param _receiveWindow the maximum number of packets buffered by the receiver
+     */
+    public ConnectedHandler(final Handler _under, int _localId, String _destination,
+                            Mode _mode, int _windowSize, int _receiveWindow)
     {
         super(_under, _localId, true);
+        if (_windowSize < 1 || _receiveWindow < 1)
+            throw new IllegalArgumentException("window sizes must be positive");
         this.local_ID = _localId;
         this.destination = _destination;
         this.remote_ID = -1;
+        this.mode = _mode;
+        this.format = FORMAT;
+        this.header = new Header();
+        this.send_window = new Segment[_windowSize];
+        for (int i = 0; i < _windowSize; i++)
+            this.send_window[i] = new Segment();
+        this.window_timeout = new TimingWheel.Timeout(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                go_back_n();
+            }
+        });
+        this.delivery_timeout = new TimingWheel.Timeout(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                deliver();
+            }
+        });
+        this.probe_timeout = new TimingWheel.Timeout(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                probe();
+            }
+        });
+        this.update_timeout = new TimingWheel.Timeout(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                update_window();
+            }
+        });
+        this.ack_timeout = new TimingWheel.Timeout(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                delayed_ack();
+            }
+        });
+        this.send_base = 0;
         this.local_packet_number = 0;
+        this.smoothed_rtt = -1;
+        this.rtt_variance = 0;
+        this.rto = DELAY;
+        this.congestion = CongestionControl.create(CONGESTION, _windowSize);
+        this.next_send_at = System.nanoTime();
+        this.send_limit = -1;
+        this.probes = 0;
+        this.advertised = 0;
+        this.updates = 0;
+        this.receive_buffer = new ByteBuffer[_receiveWindow];
         this.remote_packet_number = 0;
+        this.delivering = false;
+        this.unacked = 0;
+        this.windowed = this.format == Header.Format.BINARY;
+        this.offer = FLOW_CONTROL && !this.windowed ? Header.encodeOffer(this.format, this.local_ID) : null;
+        this.sack = new int[2 * Header.MAX_SACK_BLOCKS];
         this.underHandler = _under;
-        this.lock = new Object();
-        debug("LOCAL ID: " + this.local_ID, 4);
+        this.lock = new ReentrantLock();
+        this.window_moved = this.lock.newCondition();
+        debug("LOCAL ID: " + this.local_ID + " " + this.mode + " " + _windowSize + "/" + _receiveWindow, 4);
         send(HELLO);
         debug("Terminating constructor.", 2);
     }
 
+    /**
+     * @return {@code true} once the HELLO has been acked, which may not be the
+     *         case after the constructor if {@link #CONNECT_TIMEOUT} is set
+     */
+    public boolean isConnected()
+    {
+        return this.send_base > 0;
+    }
+
+    /**
+     * @return the congestion window, in packets, for monitoring
+     */
+    public double getCongestionWindow()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.congestion.getWindow();
+        } finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the smoothed round trip time, in milliseconds, or -1 until
+     *         measured, for monitoring
+     */
+    public double getSmoothedRTT()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.smoothed_rtt;
+        } finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of packets the Remote still accepts, or -1 if it
+     *         advertises nothing, for monitoring
+     */
+    public int getSendWindow()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.send_limit < 0 ? -1 : Math.max(0, this.send_limit - this.local_packet_number);
+        } finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of packets sent and not acked yet, for monitoring
+     */
+    public int getPacketsInFlight()
+    {
+        return this.local_packet_number - this.send_base;
+    }
+
     // don't change this definition
     @Override
     public void bind(Handler above)
@@ -99,179 +420,824 @@ public class ConnectedHandler extends Handler
     @Override
     public void handle(Message message)
     {
-        debug("Got msg: " + message.toString(), 1);
-        Pattern p = Pattern.compile("(.+?);(.+?);(.+?);(.*)");
-        Matcher m = p.matcher(message.payload);
+        if (DEBUG <= 1)
+            debug("Got msg: " + message.toString(), 1);
+        ByteBuffer data = message.bytes();
 
-        if (m.find())
+        if (this.header.decode(data))
         {
-            String senderID = m.group(1);
-            String destinationID = m.group(2);
-            int PN = Integer.parseInt(m.group(3));
-            String payload = m.group(4);
+            int senderID = this.header.senderID;
+            int destinationID = this.header.destinationID;
+            int PN = this.header.PN;
 
-            debug("SID: " + senderID + " DID: " + destinationID + " PN: " + PN + " PLD: " + payload);
-            if (payload.equals(HELLO))
+            if (DEBUG <= 0)
+                debug("Header: " + this.header);
+            // only a remote which is not the original implementation sends them
+            if (!this.windowed && this.offer != null && (senderID == this.remote_ID || this.remote_ID == -1)
+                    && (this.header.format == Header.Format.BINARY || this.header.hasWindow()))
+                this.windowed = true;
+            if (this.header.isHello())
             {
                 debug("Processing as HELLO.");
-                if (destinationID.equals("-1") && PN == 0 && Integer.parseInt(senderID) >= 0) {
+                if (destinationID == -1 && PN == 0 && senderID >= 0) {
                     if (this.remote_ID == -1) {
-                        synchronized (this.lock)
-                        {
-                            this.remote_ID = Integer.parseInt(senderID);
-                        }
-                        send(ACK);
-                        synchronized (this.lock)
+                        this.lock.lock();
+                        try
                         {
+                            this.remote_ID = senderID;
                             this.remote_packet_number = 1;
-                        }
-                    }
-                    else if (this.remote_ID == Integer.parseInt(senderID)) {
-                        synchronized (this.lock)
+                        } finally
                         {
-                            this.remote_packet_number = 0;
-                        }
-                        send(ACK);
-                        synchronized (this.lock)
-                        {
-                            this.remote_packet_number = 1;
+                            this.lock.unlock();
                         }
+                        send_ack();
+                    }
+                    else if (this.remote_ID == senderID) {
+                        send_ack();
                     }
                 }
             }
-            else if (payload.equals(ACK) && check_IDs(destinationID, senderID) && this.remote_ID != -1)
+            else if (this.header.hasCookie() && destinationID == this.local_ID && this.remote_ID == -1)
             {
-
-                if (PN == this.local_packet_number )
+                debug("Processing as COOKIE.");
+                handle_cookie(this.header.cookie);
+            }
+            else if (this.header.isBusy() && destinationID == this.local_ID && this.remote_ID == -1)
+            {
+                debug("Processing as BUSY.", 4);
+                handle_busy(this.header.retryAfter);
+            }
+            else if (this.header.isAck() && PN == 0 && destinationID == this.local_ID && this.remote_ID == -1)
+            {
+                // the remote acks our HELLO before we got its own one, which a
+                // dispatcher may have taken: it is the remote, and its HELLO
+                // carried nothing, so there is no need to wait for it again
+                debug("Processing as ACK to HELLO from an unknown remote.");
+                this.lock.lock();
+                try
                 {
-                    debug("Processing as ACK OK.");
-                    synchronized (this.lock)
-                    {
-                        this.local_packet_number++;
-                        this.lock.notify();
-                    }
-                } else
-                    debug("local_packet_number: " + this.local_packet_number);
-                    drop_msg("Unexpected ACK PN");
+                    this.remote_ID = senderID;
+                    this.remote_packet_number = 1;
+                } finally
+                {
+                    this.lock.unlock();
+                }
+                send_ack();
+                handle_ack(this.header);
+            }
+            else if (this.header.isAck() && check_IDs(destinationID, senderID) && this.remote_ID != -1)
+            {
+                handle_ack(this.header);
+                if (this.header.hasData() && aboveHandler != null) // the ACK came with a packet
+                    handle_data(PN, this.header.payload(data));
             }
             else if (check_IDs(destinationID, senderID) && this.remote_ID != -1) // actual message
             {
                 if (aboveHandler == null) return;
-                if (PN == this.remote_packet_number - 1) // got last message
+                handle_data(PN, this.header.payload(data));
+            } else
+                drop_msg("ID mismatch");
+        } else
+        {
+            drop_msg("Invalid format");
+        }
+    }
+
+    /**
+     * Processes an ACK, which acks every packet up to its PN, and the ones of
+     * its selective blocks if it advertises a window.
+     */
+    private void handle_ack(Header ack)
+    {
+        int PN = ack.ackPN;
+        this.lock.lock();
+        try
+        {
+            // even from the ACK of an old packet, which may answer a probe
+            if (ack.hasWindow() && ack.window > this.send_limit)
+            {
+                this.send_limit = ack.window;
+                this.probes = 0;
+                TIMER.cancel(this.probe_timeout);
+                this.window_moved.signalAll();
+            }
+            if (PN >= this.local_packet_number || PN < this.send_base && ack.sackCount == 0)
+            {
+                if (DEBUG <= 0)
+                    debug("local_packet_number: " + this.local_packet_number);
+                drop_msg("Unexpected ACK PN");
+                return;
+            }
+            debug("Processing as ACK OK.");
+            Segment newest = null;
+            for (int i = -1; i < ack.sackCount; i++) // the packets up to PN, then the blocks
+            {
+                int start = i < 0 ? this.send_base : Math.max(this.send_base, ack.sack[2 * i]);
+                int end = i < 0 ? PN + 1 : Math.min(this.local_packet_number, ack.sack[2 * i + 1]);
+                for (int n = start; n < end; n++)
                 {
-                    debug("Processing as MSG OK.");
-                    int temp = this.remote_packet_number;
-                    synchronized (this.lock)
-                    {
-                        this.remote_packet_number = PN;
-                    }
-                    send(ACK);
-                    synchronized (this.lock)
-                    {
-                        this.remote_packet_number = temp;
-                    }
+                    Segment segment = this.send_window[n % this.send_window.length];
+                    if (segment.acked)
+                        continue;
+                    segment.acked = true;
+                    TIMER.cancel(segment.timeout);
+                    if (newest != null)
+                        this.congestion.onAck(-1);
+                    if (newest == null || n > newest.PN)
+                        newest = segment;
                 }
-                else if (PN == this.remote_packet_number) // got new message
+            }
+            if (newest == null)
+                return;
+            // the sample is taken from the newest packet, which the ACK is likely to answer
+            long sample = -1;
+            if (newest.transmissions == 1) // Karn: no sample from a retransmitted packet
+            {
+                sample = System.nanoTime() - newest.sent_at;
+                update_rto(sample);
+            }
+            this.congestion.onAck(sample);
+            while (this.send_base < this.local_packet_number
+                    && this.send_window[this.send_base % this.send_window.length].acked)
+                this.send_base++;
+            if (this.mode == Mode.GO_BACK_N)
+                restart_window_task();
+            this.window_moved.signalAll();
+        } finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Answers the COOKIE challenge of a server, by sending the HELLO again
+     * with the cookie, which its retransmissions carry too.
+     */
+    private void handle_cookie(int cookie)
+    {
+        Segment hello = this.send_window[0];
+        this.lock.lock();
+        try
+        {
+            if (hello.PN != 0 || hello.acked)
+                return;
+            hello.wire = Header.encodeCookie(this.format, Header.FLAG_HELLO, this.local_ID, -1, cookie);
+        } finally
+        {
+            this.lock.unlock();
+        }
+        transmit(hello, 0);
+    }
+
+    /**
+     * Postpones the retransmission of the HELLO refused by a busy server until
+     * the advised delay, plus a random part of it, so that the clients refused
+     * together do not come back together.
+     */
+    private void handle_busy(int retryAfter)
+    {
+        Segment hello = this.send_window[0];
+        long delay = Math.min(MAX_DELAY, Math.max(MIN_DELAY, retryAfter));
+        delay += (long) (ThreadLocalRandom.current().nextDouble() * delay);
+        this.lock.lock();
+        try
+        {
+            if (hello.PN != 0 || hello.acked)
+                return;
+            TIMER.schedule(this.mode == Mode.SELECTIVE_REPEAT ? hello.timeout : this.window_timeout, delay);
+        } finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    private void handle_data(int PN, ByteBuffer payload)
+    {
+        int expected;
+        this.lock.lock();
+        try
+        {
+            if (PN < this.remote_packet_number) // got an old message, its ACK was lost
+            {
+                debug("Processing as MSG OLD.");
+                send_ack();
+                return;
+            }
+            if (PN >= this.remote_packet_number + this.receive_buffer.length)
+            {
+                drop_msg("Unexpected MSG PN");
+                return;
+            }
+            debug("Processing as MSG OK.");
+            expected = this.remote_packet_number;
+            this.receive_buffer[PN % this.receive_buffer.length] = payload;
+        } finally
+        {
+            this.lock.unlock();
+        }
+        // acked once delivered, so that the window advertised counts it
+        deliver();
+        this.lock.lock();
+        try
+        {
+            if (!this.windowed || PN != expected || this.remote_packet_number > PN + 1)
+                send_ack(); // out of order, or filling a gap: the Remote is to know at once
+            else if (++this.unacked >= ACK_EVERY)
+                send_ack();
+            else if (!TIMER.isScheduled(this.ack_timeout))
+                TIMER.schedule(this.ack_timeout, ACK_DELAY);
+        } finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Passes upwards the received packets which are in order. If the above
+     * handler refuses one, it is kept and the delivery is retried a bit later.
+     * The packets are passed without holding the lock, the above handler
+     * possibly blocking or sending; a single thread passes them at a time, so
+     * that their order is kept.
+     */
+    private void deliver()
+    {
+        this.lock.lock();
+        try
+        {
+            if (this.delivering) // the packet just received is passed by that thread
+                return;
+            this.delivering = true;
+        } finally
+        {
+            this.lock.unlock();
+        }
+        boolean done = false;
+        try
+        {
+            while (!done)
+            {
+                ByteBuffer payload;
+                this.lock.lock();
+                try
+                {
+                    payload = this.receive_buffer[this.remote_packet_number % this.receive_buffer.length];
+                    done = payload == null;
+                    if (done)
+                        this.delivering = false;
+                } finally
                 {
-                    debug("Processing as MSG OLD.");
-                    pass_msg_to_app(new Message(payload, Integer.toString(this.local_ID)));
-                    send(ACK);
-                    synchronized (this.lock)
+                    this.lock.unlock();
+                }
+                if (done)
+                    return;
+                boolean taken = pass_msg_to_app(new Message(payload, Integer.toString(this.local_ID)));
+                this.lock.lock();
+                try
+                {
+                    if (taken)
                     {
+                        this.receive_buffer[this.remote_packet_number % this.receive_buffer.length] = null;
                         this.remote_packet_number++;
+                    } else
+                    {
+                        if (!TIMER.isScheduled(this.delivery_timeout))
+                            TIMER.schedule(this.delivery_timeout, DELAY / 10);
+                        this.delivering = false;
+                        done = true;
                     }
-                } else {
-                    drop_msg("Unexpected MSG PN");
+                } finally
+                {
+                    this.lock.unlock();
                 }
-            } else
-                drop_msg("ID mismatch");
-        } else
+            }
+        } finally
         {
-            drop_msg("Invalid format");
+            if (!done) // the above handler has thrown
+            {
+                this.lock.lock();
+                this.delivering = false;
+                this.lock.unlock();
+            }
         }
     }
 
-    private boolean check_IDs(String destinationID, String senderID)
+    private boolean check_IDs(int destinationID, int senderID)
     {
-        debug(destinationID + "/" + senderID + ": " + (destinationID.equals(this.local_ID + "")) + " " + ((senderID.equals(this.remote_ID + ""))));
-        return (destinationID.equals(this.local_ID + "") && (senderID.equals(this.remote_ID + "")));
+        if (DEBUG <= 0)
+            debug(destinationID + "/" + senderID + ": " + (destinationID == this.local_ID) + " " + (senderID == this.remote_ID));
+        return destinationID == this.local_ID && senderID == this.remote_ID;
     }
 
     private void drop_msg(String reason)
     {
-        debug("Message dropped: " + reason, 4);
+        if (DEBUG <= 4)
+            debug("Message dropped: " + reason, 4);
+    }
+
+    private boolean pass_msg_to_app(Message msg)
+    {
+        if (DEBUG <= 4)
+            debug("Message sent to APP: " + msg.toString(), 4);
+        return aboveHandler.receive(msg);
+    }
+
+    /**
+     * Acks every packet received in order, as the original implementation
+     * does: a packet received out of order is acked along the blocks of a
+     * windowed ACK only, never alone, so that any ACK acks every packet up to
+     * its PN.
+     */
+    private void send_ack()
+    {
+        ByteBuffer wire;
+        this.lock.lock();
+        try
+        {
+            int PN = this.remote_packet_number - 1;
+            if (this.windowed)
+            {
+                int window = advertise();
+                int blocks = sack_blocks();
+                wire = Header.encodeAck(this.format, this.local_ID, this.remote_ID, PN, window, this.sack, blocks);
+            }
+            else
+                wire = Header.encode(this.format, Header.FLAG_ACK, this.local_ID, this.remote_ID, PN, EMPTY);
+            acked();
+        } finally
+        {
+            this.lock.unlock();
+        }
+        underHandler.send(wire, destination);
+    }
+
+    /**
+     * Run by the timing wheel when packets received in order have not been
+     * acked for ACK_DELAY, neither by an ACK nor along a packet.
+     */
+    private void delayed_ack()
+    {
+        this.lock.lock();
+        try
+        {
+            if (this.unacked == 0)
+                return;
+        } finally
+        {
+            this.lock.unlock();
+        }
+        send_ack();
     }
 
-    private void pass_msg_to_app(Message msg)
+    /**
+     * Notes that the packets received have just been acked. To be called
+     * while holding the lock.
+     */
+    private void acked()
     {
-        debug("Message sent to APP: " + msg.toString(), 4);
-        aboveHandler.receive(msg);
+        this.unacked = 0;
+        TIMER.cancel(this.ack_timeout);
     }
 
+    /**
+     * Fills the selective ACK blocks with the packets received beyond the
+     * last one delivered. To be called while holding the lock.
+     *
+     * @return the number of blocks
+     */
+    private int sack_blocks()
+    {
+        int count = 0;
+        int start = -1;
+        int end = this.remote_packet_number + this.receive_buffer.length;
+        for (int PN = this.remote_packet_number; PN <= end && count < Header.MAX_SACK_BLOCKS; PN++)
+        {
+            boolean received = PN < end && this.receive_buffer[PN % this.receive_buffer.length] != null;
+            if (received && start < 0)
+                start = PN;
+            else if (!received && start >= 0)
+            {
+                this.sack[2 * count] = start;
+                this.sack[2 * count + 1] = PN;
+                count++;
+                start = -1;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Computes the receive window, from the room left in the handler above and
+     * in the receive buffer. The window is never shrunk: the packets which the
+     * Remote has been told it may send are still accepted. While the handler
+     * above has no room, its window is checked again a bit later.
+     *
+     * @return the number following the last packet I accept
+     */
+    private int advertise()
+    {
+        Handler above = this.aboveHandler;
+        int room = above == null ? Integer.MAX_VALUE : above.getFreeCapacity();
+        this.lock.lock();
+        try
+        {
+            int edge = this.remote_packet_number + Math.min(this.receive_buffer.length, Math.max(0, room));
+            this.advertised = Math.max(this.advertised, edge);
+            if (room > 0)
+                this.updates = 0;
+            else if (!TIMER.isScheduled(this.update_timeout))
+                TIMER.schedule(this.update_timeout, Math.min(MAX_PROBE_DELAY, 1L << Math.min(this.updates++, 16)));
+            return this.advertised;
+        } finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Run by the timing wheel while the handler above has no room: once it
+     * has, the Remote is told its new window at once, by acking again the
+     * last packet received, rather than when it probes.
+     */
+    private void update_window()
+    {
+        int before, PN;
+        this.lock.lock();
+        try
+        {
+            before = this.advertised;
+            PN = this.remote_packet_number - 1;
+        } finally
+        {
+            this.lock.unlock();
+        }
+        if (PN >= 0 && advertise() > before)
+        {
+            if (DEBUG <= 4)
+                debug("Window update up to PN " + this.advertised, 4);
+            send_ack();
+        }
+    }
+
+    /**
+     * Sends a payload to the remote. This method only blocks while the send
+     * window is full, except for the HELLO which is waited for until acked.
+     *
+     * @param payload the payload to be sent
+     */
     @Override
     public void send(final String payload)
     {
-        debug("send() ThreadID: " + Thread.currentThread().getId());
-        debug("Sending " + payload);
+        if (DEBUG <= 0)
+            debug("Sending " + payload);
+        if (payload.equals(HELLO))
+        {
+            int PN = send_packet(Header.FLAG_HELLO, EMPTY);
+            if (!wait_acked(PN, CONNECT_TIMEOUT))
+                debug("Not connected after " + CONNECT_TIMEOUT + " ms", 4);
+        }
+        else
+            send_packet(0, ByteBuffer.wrap(payload.getBytes(StandardCharsets.UTF_8)));
+    }
 
+    /**
+     * Sends raw bytes to the remote, without any charset conversion. This
+     * method only blocks while the send window is full.
+     *
+     * @param data the bytes to be sent, from position to limit, which are
+     *             copied once into the packet
+     */
+    @Override
+    public void send(ByteBuffer data)
+    {
+        send_packet(0, data);
+    }
+
+    /** @return the packet number of the packet sent */
+    private int send_packet(int flags, ByteBuffer payload)
+    {
+        if (DEBUG <= 0)
+            debug("send() ThreadID: " + Thread.currentThread().getId());
+
+        Segment segment;
         int PN;
-        if (payload.equals(ACK))
-            PN = this.remote_packet_number;
-        else
+        long pause = 0;
+        this.lock.lock();
+        try
+        {
+            while (this.local_packet_number - this.send_base >= this.congestion.window() || window_closed())
+            {
+                // with nothing in flight, no ACK would tell when the window opens
+                if (window_closed() && this.send_base == this.local_packet_number
+                        && !TIMER.isScheduled(this.probe_timeout))
+                    TIMER.schedule(this.probe_timeout, probe_delay());
+                debug("Waiting");
+                try
+                {
+                    this.window_moved.await();
+                    debug("Notified");
+                } catch (InterruptedException e)
+                {
+                    error("Interrupted!", e);
+                }
+            }
             PN = this.local_packet_number;
+            segment = this.send_window[PN % this.send_window.length];
+            segment.PN = PN;
+            // piggybacks the delayed ACK, and protects a TEXT payload which looks like a marker
+            if (flags == 0 && this.windowed && (this.unacked > 0
+                    || this.format == Header.Format.TEXT && Header.looksLikeMarker(payload)))
+            {
+                int window = advertise();
+                int blocks = sack_blocks();
+                segment.wire = Header.encodeData(this.format, this.local_ID, this.remote_ID, PN, this.remote_packet_number - 1,
+                        window, this.sack, blocks, payload);
+                acked();
+            }
+            else
+                segment.wire = Header.encode(this.format, flags, this.local_ID, this.remote_ID, PN, payload);
+            segment.acked = false;
+            segment.transmissions = 0;
+            this.local_packet_number++;
 
-        // me; you; number; payload
-        String send_payload = this.local_ID + ";" + this.remote_ID + ";" + PN + ";" + payload;
+            // assign tasks
+            if (this.mode == Mode.SELECTIVE_REPEAT)
+                arm(segment);
+            else if (!TIMER.isScheduled(this.window_timeout))
+                restart_window_task();
+            if (PACING && this.smoothed_rtt > 0)
+                pause = pace();
+        } finally
+        {
+            this.lock.unlock();
+        }
+        if (pause >= MIN_PAUSE)
+        {
+            long deadline = System.nanoTime() + pause;
+            for (long left = pause; left > 0; left = deadline - System.nanoTime())
+                LockSupport.parkNanos(left);
+        }
+        transmit(segment, PN);
+        return PN;
+    }
+
+    /**
+     * Books the time of sending a new packet, one interval after the previous
+     * one, the interval spreading the congestion window over the round trip
+     * time. To be called while holding the lock.
+     *
+     * @return how long to wait before sending it, in nanoseconds
+     */
+    private long pace()
+    {
+        long interval = (long) (this.smoothed_rtt * 1e6 / (this.congestion.window() * PACING_GAIN));
+        long now = System.nanoTime();
+        long at = Math.max(this.next_send_at, now);
+        this.next_send_at = at + interval;
+        return at - now;
+    }
 
-        // create a new task
-        TimerTask task = new TimerTask()
+    /**
+     * Sends a packet of the send window, unless it has been acked meanwhile
+     * and its slot reused by a later packet.
+     */
+    private void transmit(Segment segment, int PN)
+    {
+        ByteBuffer wire;
+        this.lock.lock();
+        try
+        {
+            if (segment.PN != PN || segment.acked)
+                return;
+            if (segment.transmissions++ == 0)
+                segment.sent_at = System.nanoTime();
+            wire = segment.wire.duplicate();
+        } finally
         {
-            int cnt = 0;
+            this.lock.unlock();
+        }
+        underHandler.send(wire, destination);
+        if (PN == 0 && this.offer != null)
+            underHandler.send(this.offer.duplicate(), destination);
+        if (DEBUG <= 1)
+            debug("Sent msg: PN " + PN, 1);
+    }
 
-            @Override
-            public void run()
+    /**
+     * Updates the smoothed round trip time and its variance with a new sample,
+     * then derives the retransmission timeout from them, as in RFC 6298.
+     * To be called while holding the lock.
+     *
+     * @param sample the measured round trip time, in nanoseconds
+     */
+    private void update_rto(long sample)
+    {
+        double rtt = sample / 1e6;
+        if (this.smoothed_rtt < 0)
+        {
+            this.smoothed_rtt = rtt;
+            this.rtt_variance = rtt / 2;
+        } else
+        {
+            this.rtt_variance = (1 - BETA) * this.rtt_variance + BETA * Math.abs(this.smoothed_rtt - rtt);
+            this.smoothed_rtt = (1 - ALPHA) * this.smoothed_rtt + ALPHA * rtt;
+        }
+        long timeout = (long) Math.ceil(this.smoothed_rtt + Math.max(1, 4 * this.rtt_variance));
+        this.rto = Math.min(MAX_DELAY, Math.max(MIN_DELAY, timeout));
+        if (DEBUG <= 0)
+            debug("RTT: " + rtt + " SRTT: " + this.smoothed_rtt + " RTTVAR: " + this.rtt_variance + " RTO: " + this.rto);
+    }
+
+    /**
+     * @param transmissions the number of times a packet has already been sent
+     * @return the delay before sending it again, doubled at every retransmission
+     */
+    private long backoff(int transmissions)
+    {
+        long delay = this.rto;
+        for (int i = 1; i < transmissions && delay < MAX_DELAY; i++)
+            delay *= 2;
+        return Math.min(MAX_DELAY, delay);
+    }
+
+    /**
+     * Schedules the retransmission of a SELECTIVE_REPEAT packet, which
+     * reschedules itself until the packet is acked. To be called while holding
+     * the lock.
+     */
+    private void arm(Segment segment)
+    {
+        TIMER.schedule(segment.timeout, backoff(segment.transmissions + 1));
+    }
+
+    /**
+     * Run by the timing wheel when a SELECTIVE_REPEAT packet has not been
+     * acked in time.
+     */
+    private void retransmit(Segment segment)
+    {
+        if (DEBUG <= 0)
+            debug("Timeout ThreadID: " + Thread.currentThread().getId());
+        int PN;
+        this.lock.lock();
+        try
+        {
+            if (segment.acked)
+                return;
+            if (segment.transmissions > MAX_REPEAT && false) // max_cnt disabled for now
             {
-                cnt++;
-                debug("TimerTask ThreadID: " + Thread.currentThread().getId());
-                underHandler.send(send_payload, destination);
-                debug("Sent msg: " + send_payload, 1);
-                if (cnt > MAX_REPEAT && false) // max_cnt disabled for now
-                {
-                    debug("Maxed out, cancelling sending of " + send_payload, 4);
-                    synchronized (lock)
-                    {
-                        lock.notify();
-                    }
-                    this.cancel();
-                }
+                debug("Maxed out, cancelling sending of PN " + segment.PN, 4);
+                return;
             }
-        };
+            if (segment.PN > 0) // the HELLO may be postponed by a busy server
+                lost(segment);
+            arm(segment);
+            PN = segment.PN;
+        } finally
+        {
+            this.lock.unlock();
+        }
+        transmit(segment, PN);
+    }
 
-        // assign tasks
+    /**
+     * @return {@code true} if the Remote does not accept the next packet. To
+     *         be called while holding the lock.
+     */
+    private boolean window_closed()
+    {
+        return this.send_limit >= 0 && this.local_packet_number >= this.send_limit;
+    }
+
+    /**
+     * @return the delay before the next probe of the closed window, doubled at
+     *         every probe. To be called while holding the lock.
+     */
+    private long probe_delay()
+    {
+        return Math.min(MAX_PROBE_DELAY, backoff(this.probes + 1));
+    }
 
-        if(payload.equals(ACK))
+    /**
+     * Run by the timing wheel while the window of the Remote is closed and
+     * nothing is in flight: the last packet acked is sent again, so that the
+     * Remote acks it again with its current window.
+     */
+    private void probe()
+    {
+        ByteBuffer wire;
+        int PN;
+        this.lock.lock();
+        try
+        {
+            PN = this.send_base - 1;
+            Segment last = this.send_window[Math.max(0, PN) % this.send_window.length];
+            if (!window_closed() || this.send_base != this.local_packet_number || PN < 0 || last.PN != PN)
+                return;
+            wire = last.wire.duplicate();
+            this.probes++;
+            TIMER.schedule(this.probe_timeout, probe_delay());
+        } finally
         {
-            underHandler.send(send_payload, destination);
+            this.lock.unlock();
+        }
+        if (DEBUG <= 4)
+            debug("Probing the closed window with PN " + PN, 4);
+        underHandler.send(wire, destination);
+    }
+
+    /**
+     * Tells the congestion control that a packet has not been acked in time.
+     * To be called while holding the lock.
+     */
+    private void lost(Segment segment)
+    {
+        this.congestion.onLoss(segment.PN, this.local_packet_number, segment.transmissions);
+        if (DEBUG <= 3)
+            debug("Lost PN " + segment.PN + ": " + this.congestion, 3);
+    }
+
+    /**
+     * (Re)arms the GO_BACK_N timer on the oldest non acked packet, or disarms
+     * it when nothing is in flight. To be called while holding the lock.
+     */
+    private void restart_window_task()
+    {
+        TIMER.cancel(this.window_timeout);
+        if (this.send_base == this.local_packet_number)
             return;
+        Segment base = this.send_window[this.send_base % this.send_window.length];
+        TIMER.schedule(this.window_timeout, backoff(Math.max(1, base.transmissions)));
+    }
+
+    /**
+     * Run by the timing wheel when the oldest GO_BACK_N packet has not been
+     * acked in time: every non acked packet of the window is sent again.
+     */
+    private void go_back_n()
+    {
+        if (DEBUG <= 0)
+            debug("Timeout ThreadID: " + Thread.currentThread().getId());
+        int from, to;
+        this.lock.lock();
+        try
+        {
+            from = this.send_base;
+            to = this.local_packet_number;
+            if (from > 0 && from < to)
+                lost(this.send_window[from % this.send_window.length]);
+        } finally
+        {
+            this.lock.unlock();
         }
+        for (int PN = from; PN < to; PN++)
+            transmit(this.send_window[PN % this.send_window.length], PN);
+        this.lock.lock();
+        try
+        {
+            if (!TIMER.isScheduled(this.window_timeout))
+                restart_window_task();
+        } finally
+        {
+            this.lock.unlock();
+        }
+    }
 
-        TIMER.schedule(task, 0, DELAY);
-        while(this.local_packet_number == PN)
+    /**
+     * Waits until every packet up to the specified one has been acked.
+     *
+     * @param PN      the packet number to be acked
+     * @param timeout the maximum time to wait in milliseconds, 0 for ever
+     * @return {@code true} if acked, {@code false} on timeout
+     */
+    private boolean wait_acked(int PN, long timeout)
+    {
+        long deadline = System.currentTimeMillis() + timeout;
+        this.lock.lock();
+        try
         {
-            debug("Waiting");
-            synchronized (this.lock)
+            while (this.send_base <= PN)
             {
+                long remaining = deadline - System.currentTimeMillis();
+                if (timeout > 0 && remaining <= 0)
+                    return false;
+                debug("Waiting");
                 try
                 {
-                    this.lock.wait();
+                    if (timeout > 0)
+                        this.window_moved.await(remaining, TimeUnit.MILLISECONDS);
+                    else
+                        this.window_moved.await();
                     debug("Notified");
                 } catch (InterruptedException e)
                 {
                     error("Interrupted!", e);
                 }
             }
-            task.cancel();
+        } finally
+        {
+            this.lock.unlock();
         }
+        return true;
     }
 
     @Override
@@ -280,9 +1246,32 @@ public class ConnectedHandler extends Handler
         no_send();
     }
 
+    /**
+     * Gives the packets still in flight a chance to be acked, then stops
+     * retransmitting them and performs the standard {@link Handler#close}.
+     */
     @Override
     public void close()
     {
+        if (!isConnected())
+            debug("Closing before being connected", 4);
+        else if (!wait_acked(this.local_packet_number - 1, (long) MAX_REPEAT * DELAY))
+            debug("Closing with non acked packets", 4);
+        delayed_ack(); // the Remote is not to retransmit the last packets received
+        this.lock.lock();
+        try
+        {
+            TIMER.cancel(this.window_timeout);
+            TIMER.cancel(this.delivery_timeout);
+            TIMER.cancel(this.probe_timeout);
+            TIMER.cancel(this.update_timeout);
+            TIMER.cancel(this.ack_timeout);
+            for (Segment segment : this.send_window)
+                TIMER.cancel(segment.timeout);
+        } finally
+        {
+            this.lock.unlock();
+        }
         super.close();
     }
 
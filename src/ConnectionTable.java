@@ -0,0 +1,262 @@
+/**
+ * This class defines a concurrent table of connections, keyed by the
+ * {@code int} identifier of the remote end, without any boxing. The table is
+ * split into stripes, each one an open addressing hash table with linear
+ * probing, guarded by its own lock; so lookups take a constant time and
+ * threads working on different connections seldom contend.
+ *
+ * Connections record their last activity, and the idle ones are evicted by
+ * {@link #evictIdle}, one stripe at a time, so that an eviction pass never
+ * holds a lock for long.
+ */
+public class ConnectionTable {
+
+  /** The state of a connection, as known by a dispatcher. */
+  public static class Connection {
+    /** The identifier of the remote end. */
+    public final int remoteID;
+    /** The address of the remote end. */
+    public final String address;
+    /** The identifier of the local handler of this connection, or -1. */
+    private volatile int partnerID = -1;
+    /** The time of the last packet, as given by System.currentTimeMillis(). */
+    private volatile long lastActivity;
+
+    /**
+     * @param _remoteID
+     *          the identifier of the remote end
+     * @param _address
+     *          the address of the remote end
+     */
+    public Connection(int _remoteID, String _address) {
+      this.remoteID = _remoteID;
+      this.address = _address;
+      this.lastActivity = System.currentTimeMillis();
+    }
+
+    /** @return the identifier of the local handler, or -1 if not known yet */
+    public int getPartnerID() {
+      return this.partnerID;
+    }
+
+    /**
+     * Records the local handler of this connection, which is then
+     * established.
+     *
+     * @param _partnerID
+     *          the identifier of the local handler
+     */
+    public void setPartnerID(int _partnerID) {
+      this.partnerID = _partnerID;
+    }
+
+    /** @return {@code true} once the local handler is known */
+    public boolean isEstablished() {
+      return this.partnerID != -1;
+    }
+
+    /** Records some activity now. */
+    public void touch() {
+      this.lastActivity = System.currentTimeMillis();
+    }
+
+    /** @return the time of the last activity, in milliseconds */
+    public long getLastActivity() {
+      return this.lastActivity;
+    }
+
+    @Override
+    public String toString() {
+      return "[" + this.remoteID + "@" + this.address + " -> "
+          + this.partnerID + "]";
+    }
+  }
+
+  /** A hash table of its own, guarded by its monitor. */
+  private static class Stripe {
+    int[] keys;
+    Connection[] values; // null for a free slot
+    int size = 0;
+
+    Stripe(int capacity) {
+      this.keys = new int[capacity];
+      this.values = new Connection[capacity];
+    }
+  }
+
+  /** The initial capacity of a stripe, a power of two. */
+  private static final int INITIAL_CAPACITY = 16;
+
+  private final Stripe[] stripes;
+  private final int stripeMask;
+
+  /**
+   * Initializes an empty table.
+   *
+   * @param _stripes
+   *          the number of stripes, rounded up to a power of two
+   */
+  public ConnectionTable(int _stripes) {
+    int n = Integer.highestOneBit(Math.max(1, _stripes - 1)) << 1;
+    this.stripes = new Stripe[n];
+    for (int i = 0; i < n; i++)
+      this.stripes[i] = new Stripe(INITIAL_CAPACITY);
+    this.stripeMask = n - 1;
+  }
+
+  /** Spreads the bits of a key, consecutive keys being common. */
+  private static int hash(int key) {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  private Stripe stripe(int hash) {
+    return this.stripes[(hash >>> 24) & this.stripeMask];
+  }
+
+  /** @return the slot of the key, or of the free slot where it would go */
+  private static int slot(Stripe stripe, int key, int hash) {
+    int mask = stripe.keys.length - 1;
+    int i = hash & mask;
+    while (stripe.values[i] != null && stripe.keys[i] != key)
+      i = (i + 1) & mask;
+    return i;
+  }
+
+  /**
+   * @param remoteID
+   *          the identifier of a remote end
+   * @return its connection, or {@code null} if unknown
+   */
+  public Connection get(int remoteID) {
+    int hash = hash(remoteID);
+    Stripe stripe = stripe(hash);
+    synchronized (stripe) {
+      return stripe.values[slot(stripe, remoteID, hash)];
+    }
+  }
+
+  /**
+   * Inserts a connection, unless its remote end is already known.
+   *
+   * @param connection
+   *          the new connection
+   * @return the connection already known, or {@code null} if the new one has
+   *         been inserted
+   */
+  public Connection putIfAbsent(Connection connection) {
+    int hash = hash(connection.remoteID);
+    Stripe stripe = stripe(hash);
+    synchronized (stripe) {
+      int i = slot(stripe, connection.remoteID, hash);
+      if (stripe.values[i] != null)
+        return stripe.values[i];
+      stripe.keys[i] = connection.remoteID;
+      stripe.values[i] = connection;
+      if (++stripe.size * 4 > stripe.keys.length * 3) // load factor 0.75
+        resize(stripe, stripe.keys.length * 2);
+      return null;
+    }
+  }
+
+  /**
+   * Removes the connection of a remote end.
+   *
+   * @param remoteID
+   *          the identifier of the remote end
+   * @return the removed connection, or {@code null} if unknown
+   */
+  public Connection remove(int remoteID) {
+    int hash = hash(remoteID);
+    Stripe stripe = stripe(hash);
+    synchronized (stripe) {
+      int i = slot(stripe, remoteID, hash);
+      Connection removed = stripe.values[i];
+      if (removed != null)
+        delete(stripe, i);
+      return removed;
+    }
+  }
+
+  /**
+   * Frees a slot, then shifts back the following entries of its cluster, so
+   * that no tombstone is left. To be called while holding the stripe lock.
+   */
+  private static void delete(Stripe stripe, int slot) {
+    int mask = stripe.keys.length - 1;
+    int free = slot;
+    int i = (slot + 1) & mask;
+    while (stripe.values[i] != null) {
+      int home = hash(stripe.keys[i]) & mask;
+      // move the entry back if its home is not between the free slot and it
+      if (((i - home) & mask) >= ((i - free) & mask)) {
+        stripe.keys[free] = stripe.keys[i];
+        stripe.values[free] = stripe.values[i];
+        free = i;
+      }
+      i = (i + 1) & mask;
+    }
+    stripe.values[free] = null;
+    stripe.size--;
+  }
+
+  /** To be called while holding the stripe lock. */
+  private static void resize(Stripe stripe, int capacity) {
+    int[] keys = stripe.keys;
+    Connection[] values = stripe.values;
+    stripe.keys = new int[capacity];
+    stripe.values = new Connection[capacity];
+    for (int i = 0; i < keys.length; i++)
+      if (values[i] != null) {
+        int j = slot(stripe, keys[i], hash(keys[i]));
+        stripe.keys[j] = keys[i];
+        stripe.values[j] = values[i];
+      }
+  }
+
+  /** @return the number of connections, at the time of the call */
+  public int size() {
+    int size = 0;
+    for (Stripe stripe : this.stripes)
+      synchronized (stripe) {
+        size += stripe.size;
+      }
+    return size;
+  }
+
+  /** @return the number of stripes, to be given in turn to {@link #evictIdle} */
+  public int getStripeCount() {
+    return this.stripes.length;
+  }
+
+  /**
+   * Removes the connections of a stripe which have been idle since the
+   * specified time. A stripe which has become mostly empty is shrunk.
+   *
+   * @param stripeIndex
+   *          the index of the stripe, from 0 to {@link #getStripeCount} - 1
+   * @param idleSince
+   *          the time before which a connection is idle, in milliseconds
+   * @return the number of evicted connections
+   */
+  public int evictIdle(int stripeIndex, long idleSince) {
+    Stripe stripe = this.stripes[stripeIndex & this.stripeMask];
+    synchronized (stripe) {
+      int evicted = 0;
+      int i = 0;
+      while (i < stripe.keys.length) {
+        Connection connection = stripe.values[i];
+        if (connection != null && connection.lastActivity < idleSince) {
+          delete(stripe, i); // an entry may have been shifted into slot i
+          evicted++;
+        } else
+          i++;
+      }
+      if (stripe.keys.length > INITIAL_CAPACITY
+          && stripe.size * 8 < stripe.keys.length)
+        resize(stripe, stripe.keys.length / 2);
+      return evicted;
+    }
+  }
+
+}
@@ -1,11 +1,13 @@
   import javax.swing.*;
+  import java.nio.ByteBuffer;
+  import java.security.GeneralSecurityException;
+  import java.security.SecureRandom;
   import java.text.SimpleDateFormat;
-  import java.util.ArrayList;
   import java.util.Date;
   import java.util.concurrent.ArrayBlockingQueue;
-  import java.util.concurrent.ConcurrentHashMap;
-  import java.util.regex.Matcher;
-  import java.util.regex.Pattern;
+  import java.util.concurrent.atomic.AtomicLong;
+  import javax.crypto.Mac;
+  import javax.crypto.spec.SecretKeySpec;
 
   /**
  *       DispatchingHandler
@@ -22,18 +24,76 @@
 public class DispatchingHandler extends Handler
 {
 
-    /** one will need it */
-    private static final String HELLO = "--HELLO--";
-    private static final String ACK = "--ACK--";
-
     /** An arbitrary base value for the numbering of handlers. **/
     private static int counter = 35000;
 
+    /**
+     * time after which a connection without any packet from its remote end
+     * is forgotten, in milliseconds; must exceed the longest silence of a
+     * live connection
+     */
+    public static long IDLE_TIMEOUT = 10 * 60 * 1000;
+
+    /**
+     * when set, a HELLO from an unknown sender is answered by a COOKIE,
+     * without keeping any state, and the connection is only accepted once the
+     * sender has echoed the cookie in a new HELLO; this proves that it receives
+     * our packets, so that a flood of HELLOs, possibly from spoofed addresses,
+     * fills neither the accept queue nor the connection table
+     *
+     * the clients must understand cookies, as ConnectedHandler does
+     */
+    public static boolean COOKIES = false;
+
+    /** a cookie is valid during its period and the next one, in milliseconds */
+    private static final long COOKIE_PERIOD = 30 * 1000;
+
+    /**
+     * admission budget of the dispatchers created afterwards: beyond these, a
+     * new HELLO is answered by BUSY, advising to retry after twice the
+     * current accept latency, and at least after MIN_RETRY_AFTER
+     * milliseconds
+     */
+    public static int MAX_SESSIONS = Integer.MAX_VALUE;
+    public static long MAX_ACCEPT_LATENCY = 2000;
+    public static int MIN_RETRY_AFTER = 1000;
+
+    /** number of stripes of the connection table, each one swept in turn */
+    private static final int STRIPES = 64;
+
     /** the queue for pending connections */
-    private final ArrayBlockingQueue<ConnectionParameters> queue;
+    private final ArrayBlockingQueue<Pending> queue;
 
-    private final ArrayList<Integer> established_connection_queue;
-    private final ConcurrentHashMap<Integer, Integer> communication_partners;
+    /** decides whether a new HELLO is queued or answered by BUSY */
+    private final AdmissionController admission;
+
+    /** a pending connection, with the time it was queued at */
+    private static class Pending
+    {
+        final ConnectionParameters parameters;
+        final long queued_at = System.currentTimeMillis();
+
+        Pending(ConnectionParameters _parameters)
+        {
+            this.parameters = _parameters;
+        }
+    }
+
+    /** the known remote ends, by remote ID, with their local partner once established */
+    private final ConnectionTable connections;
+
+    /** the secret of the cookies, and the per thread means of computing them */
+    private final SecretKeySpec cookie_key;
+    private final ThreadLocal<CookieMaker> cookie_makers;
+    private final AtomicLong cookies_sent = new AtomicLong();
+    private final AtomicLong cookies_rejected = new AtomicLong();
+
+    /** sweeps the next stripe of the table, then reschedules itself */
+    private final TimingWheel.Timeout eviction;
+    private int next_stripe = 0; // only used by the eviction task
+
+    /** the holders for decoding headers, handle() may be called by several receive threads */
+    private final ThreadLocal<Header> headers;
 
     private static final int DEBUG = 5;
 
@@ -49,9 +109,23 @@ public class DispatchingHandler extends Handler
     public DispatchingHandler(final Handler _under, int _queueCapacity)
     {
         super(_under, ++counter, false);
-        this.queue = new ArrayBlockingQueue<ConnectionParameters>(_queueCapacity);
-        this.established_connection_queue = new ArrayList<>();
-        this.communication_partners = new ConcurrentHashMap<>();
+        this.queue = new ArrayBlockingQueue<Pending>(_queueCapacity);
+        this.admission = new AdmissionController(MAX_SESSIONS, MAX_ACCEPT_LATENCY, MIN_RETRY_AFTER);
+        this.connections = new ConnectionTable(STRIPES);
+        this.headers = ThreadLocal.withInitial(Header::new);
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        this.cookie_key = new SecretKeySpec(secret, CookieMaker.ALGORITHM);
+        this.cookie_makers = ThreadLocal.withInitial(() -> new CookieMaker(this.cookie_key));
+        this.eviction = new TimingWheel.Timeout(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                evict_idle();
+            }
+        });
+        TimingWheel.SHARED.schedule(this.eviction, sweep_period());
     }
 
     /**
@@ -65,7 +139,15 @@ public class DispatchingHandler extends Handler
      */
     public ConnectionParameters accept() throws InterruptedException
     {
-        return this.queue.take();
+        Pending pending = this.queue.take();
+        this.admission.accepted(System.currentTimeMillis() - pending.queued_at);
+        return pending.parameters;
+    }
+
+    /** @return the admission controller, for monitoring */
+    public AdmissionController getAdmissionController()
+    {
+        return this.admission;
     }
 
     @Override
@@ -81,49 +163,74 @@ public class DispatchingHandler extends Handler
     }
 
     @Override
-    public void handle(Message message)
+    protected void send(ByteBuffer data, String destinationAddress)
     {
-        debug("Got msg to dispatch: " + message.toString(), 2);
+        this.downside.send(data, destinationAddress);
+    }
 
-        Pattern p = Pattern.compile("(.+?);(.+?);(.+?);(.*)");
-        Matcher m = p.matcher(message.payload);
+    @Override
+    public void handle(Message message)
+    {
+        if (DEBUG <= 2)
+            debug("Got msg to dispatch: " + message.toString(), 2);
 
-        if (m.find())
+        Header header = this.headers.get();
+        if (header.decode(message))
         {
-            int msg_senderID = Integer.parseInt(m.group(1));
-            int msg_destinationID = Integer.parseInt(m.group(2));
-            int msg_pn = Integer.parseInt(m.group(3));
-            String msg_payload = m.group(4);
+            int msg_senderID = header.senderID;
+            int msg_destinationID = header.destinationID;
+            int msg_pn = header.PN;
+            ConnectionTable.Connection connection = this.connections.get(msg_senderID);
+            if (connection != null)
+                connection.touch();
 
+            // Case: first HELLO, without a valid cookie whereas one is required
+            // It is a HELLO & I don't know the sender & It has not proven its address
+            if (COOKIES && header.isHello() && connection == null && !check_cookie(header, message.sourceAddress))
+            {
+                debug("Message is Hello to be challenged");
+                // the offer sent along a HELLO is only answered once connected
+                if (header.hasWindow())
+                    drop_msg(message, "Offer before the cookie");
+                else
+                    send_cookie(header, message.sourceAddress);
+            }
             // Case: first HELLO
             // It is a HELLO & I don't know the sender
-            if (msg_payload.equals(HELLO) && !this.established_connection_queue.contains(msg_senderID))
+            else if (header.isHello() && connection == null)
             {
                 debug("Message is new Hello");
-                ConnectionParameters new_hello = new ConnectionParameters(msg_senderID, message.sourceAddress);
-                // enqueue
-
-                if (this.queue.offer(new_hello))
-                    this.established_connection_queue.add(msg_senderID);
-                else
-                    drop_msg(message, "Queue full");
+                // the pending connections count as sessions too
+                if (!this.admission.admit(this.upsideHandlers.size() + this.queue.size(), oldest_wait()))
+                {
+                    send_busy(header, message.sourceAddress);
+                    return;
+                }
+                connection = new ConnectionTable.Connection(msg_senderID, message.sourceAddress);
+                // several receive threads may race on the same HELLO, only one enqueues it
+                if (this.connections.putIfAbsent(connection) == null
+                        && !this.queue.offer(new Pending(new ConnectionParameters(msg_senderID, message.sourceAddress))))
+                {
+                    this.connections.remove(msg_senderID);
+                    this.admission.refuse();
+                    send_busy(header, message.sourceAddress);
+                }
             }
             // Case: ACK to first HELLO
             // It is an ACK & I know the sender & It is a response to a hello (PN = 0)
-            else if (msg_payload.equals(ACK) && this.established_connection_queue.contains(msg_senderID) && msg_pn == 0)
+            else if (header.isAck() && connection != null && msg_pn == 0)
             {
                 debug("Message is ACK to HELLO");
-                this.communication_partners.put(msg_senderID, msg_destinationID);
+                connection.setPartnerID(msg_destinationID);
                 send_msg(msg_destinationID, message);
             }
             // Case: HELLO with unknown destination
             // It is a HELLO & I know the sender & It does not know its destination
-            else if (msg_payload.equals(HELLO) && this.established_connection_queue.contains(msg_senderID) && msg_destinationID == -1)
+            else if (header.isHello() && connection != null && msg_destinationID == -1)
             {
                 debug("Message is stray HELLO");
-                Integer dest = this.communication_partners.get(msg_senderID);
-                if (dest != null)
-                    send_msg(dest, message);
+                if (connection.isEstablished())
+                    send_msg(connection.getPartnerID(), message);
                 else
                     drop_msg(message, "HELLO without known destination");
             }
@@ -141,7 +248,8 @@ public class DispatchingHandler extends Handler
 
     private void send_msg(int destinationID, Message message)
     {
-        debug("Sending to destination " + destinationID);
+        if (DEBUG <= 0)
+            debug("Sending to destination " + destinationID);
         // get handler by ID
         Handler upside_handler = super.upsideHandlers.get(destinationID);
         // pass it on
@@ -151,23 +259,157 @@ public class DispatchingHandler extends Handler
             drop_msg(message, "Handler not found");
     }
 
+    /** @return for how long the oldest pending connection has been waiting, -1 if none */
+    private long oldest_wait()
+    {
+        Pending oldest = this.queue.peek();
+        return oldest == null ? -1 : System.currentTimeMillis() - oldest.queued_at;
+    }
+
+    /**
+     * Refuses a HELLO, telling its sender when to try again, rather than
+     * letting it retransmit while the server is saturated.
+     */
+    private void send_busy(Header header, String address)
+    {
+        int retry_after = this.admission.retryAfter();
+        if (DEBUG <= 3)
+            debug("Message is Hello refused, retry after " + retry_after, 3);
+        this.downside.send(Header.encodeBusy(header.format, 0, header.senderID, retry_after), address);
+    }
+
+    /**
+     * Answers a HELLO with a COOKIE, statelessly: the cookie is a MAC of the
+     * sender, its address and the current period, so that it can be checked
+     * later without having been stored.
+     */
+    private void send_cookie(Header header, String address)
+    {
+        int cookie = this.cookie_makers.get().cookie(header.senderID, address, System.currentTimeMillis() / COOKIE_PERIOD);
+        this.downside.send(Header.encodeCookie(header.format, Header.FLAG_COOKIE, 0, header.senderID, cookie), address);
+        this.cookies_sent.incrementAndGet();
+    }
+
+    /**
+     * @return {@code true} if the HELLO carries a cookie given to its sender
+     *         at its address during the current or the previous period
+     */
+    private boolean check_cookie(Header header, String address)
+    {
+        if (!header.hasCookie())
+            return false;
+        CookieMaker maker = this.cookie_makers.get();
+        long period = System.currentTimeMillis() / COOKIE_PERIOD;
+        if (header.cookie == maker.cookie(header.senderID, address, period)
+                || header.cookie == maker.cookie(header.senderID, address, period - 1))
+            return true;
+        this.cookies_rejected.incrementAndGet();
+        return false;
+    }
+
+    /** @return the number of COOKIE challenges sent */
+    public long getCookiesSent()
+    {
+        return this.cookies_sent.get();
+    }
+
+    /** @return the number of HELLOs whose cookie was wrong or expired */
+    public long getCookiesRejected()
+    {
+        return this.cookies_rejected.get();
+    }
+
+    /**
+     * Forgets the idle connections of one stripe of the table, so that a sweep
+     * of the whole table is spread over half the IDLE_TIMEOUT.
+     */
+    private void evict_idle()
+    {
+        int evicted = this.connections.evictIdle(this.next_stripe, System.currentTimeMillis() - IDLE_TIMEOUT);
+        if (evicted > 0)
+            debug("Evicted " + evicted + " idle connections, " + this.connections.size() + " left", 3);
+        this.next_stripe = (this.next_stripe + 1) % this.connections.getStripeCount();
+        TimingWheel.SHARED.schedule(this.eviction, sweep_period());
+    }
+
+    private long sweep_period()
+    {
+        return Math.max(1, IDLE_TIMEOUT / 2 / this.connections.getStripeCount());
+    }
+
+    /** @return the number of remote ends currently known */
+    public int getConnectionCount()
+    {
+        return this.connections.size();
+    }
+
+    @Override
+    protected void close()
+    {
+        TimingWheel.SHARED.cancel(this.eviction);
+        super.close();
+    }
+
     private void drop_msg(Message msg, String reason)
     {
-        debug("Message dropped: " + msg.toString() + " [" + reason + "]", 4);
+        if (DEBUG <= 4)
+            debug("Message dropped: " + msg.toString() + " [" + reason + "]", 4);
     }
 
     private boolean pass_msg(Handler handler, Message message)
     {
-        try
+        if (handler.receive(message))
         {
-            handler.receive(message);
-            debug("Message passed to Handler: " + message, 1);
+            if (DEBUG <= 1)
+                debug("Message passed to Handler: " + message, 1);
             return true;
         }
-        catch (IllegalStateException e)
+        drop_msg(message, "Upside handler's queue is full");
+        return false;
+    }
+
+    /**
+     * Computes cookies without any allocation, one instance per thread.
+     */
+    private static class CookieMaker
+    {
+        static final String ALGORITHM = "HmacSHA256";
+
+        private final Mac mac;
+        private final ByteBuffer input = ByteBuffer.allocate(256);
+        private final byte[] output;
+
+        CookieMaker(SecretKeySpec key)
+        {
+            try
+            {
+                this.mac = Mac.getInstance(ALGORITHM);
+                this.mac.init(key);
+            } catch (GeneralSecurityException e)
+            {
+                throw new IllegalStateException(ALGORITHM + " is not available", e);
+            }
+            this.output = new byte[this.mac.getMacLength()];
+        }
+
+        int cookie(int senderID, String address, long period)
         {
-            drop_msg(message, "Upside handler's queue is full");
-            return false;
+            this.input.clear();
+            this.input.putInt(senderID);
+            this.input.putLong(period);
+            for (int i = 0; i < address.length() && this.input.hasRemaining(); i++)
+                this.input.put((byte) address.charAt(i));
+            this.input.flip();
+            this.mac.update(this.input);
+            try
+            {
+                this.mac.doFinal(this.output, 0);
+            } catch (GeneralSecurityException e)
+            {
+                throw new IllegalStateException(e);
+            }
+            return ((this.output[0] & 0xFF) << 24) | ((this.output[1] & 0xFF) << 16)
+                    | ((this.output[2] & 0xFF) << 8) | (this.output[3] & 0xFF);
         }
     }
 
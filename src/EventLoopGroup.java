@@ -0,0 +1,97 @@
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class defines a fixed pool of event loops, each one being a single
+ * thread running the tasks submitted to it, one at a time and in their order
+ * of submission. Handlers are spread over the loops, so that any number of
+ * them is served by as many threads as there are cores.
+ *
+ * A task must never block, since it would delay every other task of its loop.
+ */
+public class EventLoopGroup {
+
+  /** A single group for all usages, with one loop per core. **/
+  public static final EventLoopGroup SHARED = new EventLoopGroup(
+      "Event Loop", Runtime.getRuntime().availableProcessors());
+
+  /** A single thread and its queue of pending tasks. */
+  private static class Loop extends Thread implements Executor {
+    private final LinkedBlockingQueue<Runnable> tasks = new LinkedBlockingQueue<Runnable>();
+
+    Loop(String name) {
+      super(name);
+      this.setDaemon(true);
+      this.start();
+    }
+
+    @Override
+    public void execute(Runnable task) {
+      this.tasks.add(task);
+    }
+
+    @Override
+    public void run() {
+      while (!Thread.currentThread().isInterrupted()) {
+        Runnable task;
+        try {
+          task = this.tasks.take();
+        } catch (@SuppressWarnings("unused") InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+        try {
+          task.run();
+        } catch (RuntimeException e) {
+          System.err.println(this.getName() + ": " + e);
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  private final Loop[] loops;
+
+  /** The index of the loop given by the next call to {@link #next}. */
+  private final AtomicInteger next = new AtomicInteger();
+
+  /**
+   * Initializes and starts a new group of event loops.
+   *
+   * @param name
+   *          the prefix of the names of the threads
+   * @param size
+   *          the number of loops
+   */
+  public EventLoopGroup(String name, int size) {
+    this.loops = new Loop[Math.max(1, size)];
+    for (int i = 0; i < this.loops.length; i++)
+      this.loops[i] = new Loop(name + ' ' + i);
+  }
+
+  /**
+   * Picks a loop, in a round robin way. Tasks submitted to the returned
+   * {@code Executor} are run one after the other by the same thread.
+   *
+   * @return one of the loops of this group
+   */
+  public Executor next() {
+    return this.loops[(this.next.getAndIncrement() & Integer.MAX_VALUE)
+        % this.loops.length];
+  }
+
+  /**
+   * @return {@code true} if the current thread is the one of an event loop,
+   *         which must not block
+   */
+  public static boolean inLoop() {
+    return Thread.currentThread() instanceof Loop;
+  }
+
+  /** @return the number of loops, and so of threads */
+  public int size() {
+    return this.loops.length;
+  }
+
+}
@@ -0,0 +1,199 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * This class defines a cache of the files sent, shared by all the connections
+ * of a server, so that a file asked by many clients at the same time is read
+ * from the disk once, and then sent from memory.
+ *
+ * Each file is held in an off-heap buffer, of which every sender gets a
+ * read-only view: the senders share its bytes without copying them. A file
+ * is read into the cache by a thread of its own, the senders asking for it
+ * meanwhile reading it from the disk as usual rather than waiting. The cache
+ * holds at most a number of bytes, evicting the least recently used files
+ * first; a buffer still read by a sender when evicted is freed once it is
+ * done. A file whose size or modification time has changed since it was
+ * cached is read again.
+ *
+ * The buffers are not mapped on the file: the file could be truncated while
+ * mapped, by a PUT of the same server or by anything else, and reading a
+ * mapping beyond the end of its file faults.
+ */
+public class FileCache {
+
+  /** The default number of bytes held by a cache. */
+  public static long BUDGET = 256 * 1024 * 1024;
+
+  /** The size of the largest file cached, the others being read as usual. */
+  public static long MAX_FILE_SIZE = 64 * 1024 * 1024;
+
+  /** A cached file. */
+  private static class Entry {
+    final long size;
+    final long modified;
+    /** completed once the file has been read, for the first to ask for it */
+    final CompletableFuture<ByteBuffer> content = new CompletableFuture<ByteBuffer>();
+
+    Entry(long _size, long _modified) {
+      this.size = _size;
+      this.modified = _modified;
+    }
+  }
+
+  private final long budget;
+
+  /** The following fields are guarded by {@code this}. */
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+      16, 0.75f, true);
+  private long cached = 0;
+  private long hits = 0;
+  private long misses = 0;
+
+  /**
+   * Initializes a new cache.
+   *
+   * @param _budget
+   *          the number of bytes the cache may hold
+   */
+  public FileCache(long _budget) {
+    this.budget = _budget;
+  }
+
+  /**
+   * Gets the content of a file, if it has been read already. Otherwise, the
+   * file is read by a thread of its own, unless it is being read already, so
+   * that it is cached for the next senders; the caller does not wait for it.
+   *
+   * @param file
+   *          the file to get
+   * @return a read-only view of the whole content of the file, or
+   *         {@code null} if the file is not cached yet, or is not to be
+   *         cached, being too large or not a regular file, or could not be
+   *         read
+   */
+  public ByteBuffer get(final File file) {
+    final long size = file.length();
+    long modified = file.lastModified();
+    if (!file.isFile() || size > MAX_FILE_SIZE || size > this.budget)
+      return null;
+    final String key = key(file);
+    final Entry entry;
+    synchronized (this) {
+      Entry cached = this.entries.get(key);
+      if (cached != null && (cached.size != size || cached.modified != modified)) {
+        remove(key);
+        cached = null;
+      }
+      if (cached != null) {
+        ByteBuffer content = cached.content.getNow(null);
+        if (content != null) {
+          this.hits++;
+          return content.asReadOnlyBuffer();
+        }
+        return null; // being read
+      }
+      entry = new Entry(size, modified);
+      this.entries.put(key, entry);
+      this.cached += size;
+      this.misses++;
+      evict(entry);
+    }
+    // read without holding the lock, nor holding the caller
+    Threads.start(new Runnable() {
+      @SuppressWarnings("synthetic-access")
+      @Override
+      public void run() {
+        load(key, entry, file);
+      }
+    }, "Cacher of " + file.getName());
+    return null;
+  }
+
+  /** Reads a file into its entry, which is removed if it cannot be read. */
+  private void load(String key, Entry entry, File file) {
+    try {
+      entry.content.complete(read(file, entry.size));
+    } catch (IOException | RuntimeException e) {
+      System.err.println(e);
+      synchronized (this) {
+        if (this.entries.get(key) == entry)
+          remove(key);
+      }
+      entry.content.completeExceptionally(e);
+    }
+  }
+
+  /**
+   * Forgets a file, which is being modified.
+   *
+   * @param file
+   *          the file
+   */
+  public synchronized void invalidate(File file) {
+    remove(key(file));
+  }
+
+  /** @return the number of bytes held */
+  public synchronized long getCached() {
+    return this.cached;
+  }
+
+  /** @return the number of times a file has been found in the cache */
+  public synchronized long getHits() {
+    return this.hits;
+  }
+
+  /** @return the number of times a file has been read into the cache */
+  public synchronized long getMisses() {
+    return this.misses;
+  }
+
+  private static String key(File file) {
+    return file.toPath().toAbsolutePath().normalize().toString();
+  }
+
+  /** To be called while holding the lock. */
+  private void remove(String key) {
+    Entry entry = this.entries.remove(key);
+    if (entry != null)
+      this.cached -= entry.size;
+  }
+
+  /**
+   * Evicts the least recently used files until the budget is met, but the
+   * specified one. To be called while holding the lock.
+   */
+  private void evict(Entry kept) {
+    Iterator<Map.Entry<String, Entry>> i = this.entries.entrySet().iterator();
+    while (this.cached > this.budget && i.hasNext()) {
+      Entry entry = i.next().getValue();
+      if (entry != kept) {
+        i.remove();
+        this.cached -= entry.size;
+      }
+    }
+  }
+
+  /** Reads a whole file into a new off-heap buffer. */
+  private static ByteBuffer read(File file, long size) throws IOException {
+    ByteBuffer content = ByteBuffer.allocateDirect((int) size);
+    try (FileChannel channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.READ)) {
+      while (content.hasRemaining())
+        if (channel.read(content) < 0)
+          throw new IOException(file + " changed while being cached");
+      if (channel.size() != size)
+        throw new IOException(file + " changed while being cached");
+    }
+    content.flip();
+    return content;
+  }
+
+}
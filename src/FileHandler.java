@@ -1,8 +1,21 @@
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class FileHandler extends Handler {
 
@@ -10,6 +23,64 @@ public class FileHandler extends Handler {
 
   // don't change the following definition
   public static final String CLOSE = "** CLOSE **";
+  private static final ByteBuffer CLOSE_BYTES = ByteBuffer
+      .wrap(CLOSE.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+
+  /**
+   * The word appended to a GET for asking the file in binary chunks, and to
+   * the PUT announcing them. Each chunk is a message made of the offset of
+   * its data in the file, on 8 bytes, and of the CRC-32C of its data, on 4
+   * bytes, followed by the data.
+   */
+  public static final String CHUNKED = "CHUNKED";
+
+  /**
+   * The word of a GET asking for the rest of a file, after the length and the
+   * checksum of the part already received.
+   */
+  public static final String RESUME = "RESUME";
+
+  /**
+   * The word appended to a chunked GET for offering to receive compressed
+   * chunks, and to the PUT accepting the offer. The data of a compressed
+   * chunk is deflated on its own, so that it can be inflated whatever the
+   * order of arrival, and its offset has its sign bit set; its checksum is
+   * the one of the inflated data.
+   */
+  public static final String DEFLATE = "DEFLATE";
+
+  /**
+   * The cache of the files sent in chunked mode, shared by all the
+   * FileHandlers, or {@code null} for reading them from the disk.
+   */
+  public static FileCache CACHE = null;
+
+  /** Whether chunked GETs offer to receive compressed chunks. */
+  public static boolean COMPRESSION = false;
+
+  /** The compression level of the chunks, trading speed for ratio. */
+  public static int COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+
+  /**
+   * The number of chunks sent as they are, without trying to compress them,
+   * after data which did not compress.
+   */
+  public static int BYPASS_CHUNKS = 64;
+
+  /** The size of the data of a chunk, so that a packet fits in a datagram. */
+  public static int CHUNK_SIZE = 1376;
+
+  /** The size of the offset and of the checksum before the data of a chunk. */
+  private static final int CHUNK_HEADER = 12;
+
+  /** Set in the offset of a compressed chunk. */
+  private static final long COMPRESSED = Long.MIN_VALUE;
+
+  /** The largest number of bytes deflated into a chunk, per byte of chunk. */
+  private static final int MAX_RATIO = 16;
+
+  /** The size of the blocks read from the file, split into chunks. */
+  private static final int BLOCK_SIZE = 64 * 1024;
 
   /**
    * This delay is to slow down the sending of a file, so as to make it easy to
@@ -30,13 +101,54 @@ public class FileHandler extends Handler {
   private String fileName = null;
   private FileWriter writer = null;
   private Scanner reader = null;
+  /** instead of the reader, in chunked mode */
+  private FileChannel channel = null;
+  /** read rather than the channel, when the file is in the cache */
+  private ByteBuffer content = null;
+  /** set when the remote does not want more of the file sent */
+  private volatile boolean stopped = false;
+  /** instead of the writer, in chunked mode */
+  private WriteBehind writeBehind = null;
+  /** what has been received of the file, in chunked mode */
+  private Checkpoint checkpoint = null;
+  /** the part of the file to send or received, in chunked mode */
+  private long start = 0, end = Long.MAX_VALUE;
+  /** whether a part is sent, rather than the whole file */
+  private boolean ranged = false;
+  /** the checksum of the part received by the remote, to resume after it */
+  private long checksum = -1;
+  /** whether the chunks may be compressed, as negotiated by GET and PUT */
+  private boolean deflate = false;
+  /** the size of the file received, once announced, or -1 */
+  private volatile long size = -1;
+  /** set while the file received is being opened by its writer thread */
+  private boolean opening = false;
+  /** the offset following the last chunk received, or -1 */
+  private volatile long received = -1;
+  /** the offset at which to stop receiving */
+  private volatile long until = Long.MAX_VALUE;
+  /** set on the first bad chunk, after which nothing more is written */
+  private volatile boolean rejected = false;
+  /** set by abort() */
+  private volatile boolean aborted = false;
+  /** set once a CLOSE has been handed to another thread by handle() */
+  private final AtomicBoolean closeQueued = new AtomicBoolean();
+  /** 0 while the file received is open, 1 while being closed, then 2 */
+  private int fileClosing = 0;
+  /** for checking the chunks, by the thread of handle() only */
+  private final CRC32C crc = new CRC32C();
+  /** for compressed chunks, by the thread of handle() only */
+  private Inflater inflater = null;
+  private ByteBuffer inflated = null;
 
   /** Definition of the state machine */
   public static enum State {
     INIT, RECV, SEND, CLOSE_SENT, CLOSE_RECEIVED, CLOSED
   }
   private State currentState;
-  private final Object stateMonitor = new Object();
+  /** not a monitor, so that a virtual thread waiting on it is not pinned */
+  private final ReentrantLock stateLock = new ReentrantLock();
+  private final Condition stateChanged = this.stateLock.newCondition();
 
   /**
    * Initializes a new FileHandler with the specified parameters
@@ -54,10 +166,32 @@ public class FileHandler extends Handler {
     this.currentState = State.INIT;
   }
 
+  /**
+   * Initializes a new FileHandler receiving a part of a file whose other parts
+   * are received by other FileHandlers, all of them recording what they have
+   * received in the same checkpoint.
+   * 
+   * @param _under
+   *                      the {@link Handler} on which the new FileHandler
+   *                      will be stacked
+   * @param _rootDir
+   *                      a {@code String} identifying the directory where to
+   *                      put the file
+   * @param _checkpoint
+   *                      the checkpoint shared by the receivers of the file,
+   *                      or {@code null} for the one of the file
+   */
+  public FileHandler(Handler _under, String _rootDir, Checkpoint _checkpoint) {
+    this(_under, _rootDir);
+    this.checkpoint = _checkpoint;
+  }
+
   /** sending half-close */
   private void sendCLOSE() {
-    synchronized (this.stateMonitor) {
+    this.stateLock.lock();
+    try {
       switch (this.currentState) {
+      case RECV: // stopping the sender before the end of the file
       case SEND:
         this.downside.send(CLOSE);
         this.currentState = State.CLOSE_SENT;
@@ -66,50 +200,66 @@ public class FileHandler extends Handler {
         this.downside.send(CLOSE);
         this.currentState = State.CLOSED;
         return;
+      case CLOSE_SENT:
       case CLOSED:
         return;
       default:
         System.err
             .println("*** sendClose while in " + this.currentState + " state");
       }
+    } finally {
+      this.stateLock.unlock();
     }
   }
 
+  /**
+   * sending half-close from handle(), by another thread, as the connection may
+   * wait for its window or its pacing; once only
+   */
+  private void queueCLOSE() {
+    if (this.closeQueued.compareAndSet(false, true))
+      Threads.start(new Runnable() {
+        @SuppressWarnings("synthetic-access")
+        @Override
+        public void run() {
+          sendCLOSE();
+        }
+      }, "Closer of " + this.fileName);
+  }
+
   /** receiving half-close */
   private void handleCLOSE() {
-    synchronized (this.stateMonitor) {
+    this.stateLock.lock();
+    try {
       switch (this.currentState) {
       case INIT:
         this.currentState = State.CLOSE_RECEIVED;
-        this.stateMonitor.notify();
+        this.stateChanged.signalAll();
         return;
       case SEND:
         if (this.reader != null) {
           this.reader.close();
         }
+        closeChannel();
         this.currentState = State.CLOSE_RECEIVED;
-        this.stateMonitor.notify();
+        this.stateChanged.signalAll();
         return;
-      case RECV:
-        if (this.writer != null) {
-          try {
-            this.writer.close();
-          } catch (IOException e) {
-            System.err.println(e);
-          }
-          System.err.println("file " + this.fileName + " received");
-        }
+      case RECV: // the file is closed by letItGo(), not to wait on the disk here
         this.currentState = State.CLOSE_RECEIVED;
-        this.stateMonitor.notify();
+        this.stateChanged.signalAll();
         return;
       case CLOSE_SENT:
         this.currentState = State.CLOSED;
-        this.stateMonitor.notify();
+        this.stateChanged.signalAll();
+        return;
+      case CLOSED: // aborted
         return;
       default:
         System.err.println(
             "*** handleClose while in " + this.currentState + " state");
       }
+    } finally {
+      this.stateLock.unlock();
     }
   }
 
@@ -120,17 +270,21 @@ public class FileHandler extends Handler {
   public void letItGo() {
     System.out.println(Thread.currentThread().getName()
         + " waiting for remote close in FileHandler.run()");
-    synchronized (this.stateMonitor) {
+    this.stateLock.lock();
+    try {
       while (this.currentState != State.CLOSE_RECEIVED
           && this.currentState != State.CLOSED) {
         try {
-          this.stateMonitor.wait();
+          this.stateChanged.await();
         } catch (@SuppressWarnings("unused") InterruptedException e) {
           Thread.currentThread().interrupt();
           return;
         }
       }
+    } finally {
+      this.stateLock.unlock();
     }
+    closeFile(); // if receiving, possibly stopped before the end of the file
     sendCLOSE(); // if CLOSE_RECEIVED and not yet CLOSED
     try {
       Thread.sleep(COOLING_TIME);
@@ -139,6 +293,79 @@ public class FileHandler extends Handler {
     }
   }
 
+  /**
+   * closes the file being received, once, waiting for the disk: not to be
+   * called by handle() nor while holding the state lock; if it is being
+   * closed by another thread, waits for it to be closed
+   */
+  private void closeFile() {
+    this.stateLock.lock();
+    try {
+      while (this.fileClosing == 1)
+        this.stateChanged.awaitUninterruptibly();
+      if (this.fileClosing == 2)
+        return;
+      this.fileClosing = 1;
+    } finally {
+      this.stateLock.unlock();
+    }
+    try {
+      writeFile();
+    } finally {
+      this.stateLock.lock();
+      try {
+        this.fileClosing = 2;
+        this.stateChanged.signalAll();
+      } finally {
+        this.stateLock.unlock();
+      }
+    }
+  }
+
+  /** flushes and closes the file received, if any */
+  private void writeFile() {
+    if (this.writer != null) {
+      try {
+        this.writer.close();
+      } catch (IOException e) {
+        System.err.println(e);
+      }
+      System.err.println("file " + this.fileName + " received");
+    }
+    if (this.writeBehind != null) {
+      boolean failed = false;
+      try {
+        this.writeBehind.close();
+      } catch (IOException e) {
+        System.err.println(e);
+        failed = true;
+      }
+      if (failed && this.checkpoint == null)
+        System.err.println("file " + this.fileName + " not received");
+      else if (this.checkpoint == null || this.checkpoint.isComplete()) {
+        if (this.checkpoint != null)
+          this.checkpoint.delete();
+        System.err.println("file " + this.fileName + " received");
+      } else
+        System.err.println("bytes " + this.start + " to "
+            + Math.max(this.start, this.received) + " of file "
+            + this.fileName + " received");
+    }
+    // in case it has been cached while being received
+    if (CACHE != null && (this.writer != null || this.writeBehind != null))
+      CACHE.invalidate(new File(this.rootDir, this.fileName));
+  }
+
+  private void closeChannel() {
+    this.stopped = true;
+    if (this.channel != null)
+      try {
+        this.channel.close();
+      } catch (IOException e) {
+        System.err.println(e);
+      }
+  }
+
   /** so as to terminate properly in case of something goes wrong */
   private void error(String message) {
     System.err.println(message);
@@ -150,7 +377,16 @@ public class FileHandler extends Handler {
     @SuppressWarnings("synthetic-access")
     @Override
     public void run() {
-      if (FileHandler.this.reader != null) {
+      // on this thread, as a file being cached must not hold the handler
+      if (FileHandler.this.channel != null && CACHE != null)
+        FileHandler.this.content = CACHE.get(
+            new File(FileHandler.this.rootDir, FileHandler.this.fileName));
+      if (FileHandler.this.channel != null) {
+        sendChunks();
+        // done with the file, which a CLOSE of the remote closes only while
+        // it is still being sent
+        closeChannel();
+      } else if (FileHandler.this.reader != null) {
         FileHandler.this.downside.send("PUT " + FileHandler.this.fileName);
         while (true) {
           try {
@@ -171,42 +407,537 @@ public class FileHandler extends Handler {
       }
       sendCLOSE();
     }
+
+    /**
+     * Sends the file, or the requested part of it, as chunks, as fast as the
+     * window of the connection allows, without any delay.
+     */
+    @SuppressWarnings("synthetic-access")
+    private void sendChunks() {
+      FileHandler handler = FileHandler.this;
+      long size;
+      try {
+        size = handler.content != null ? handler.content.capacity()
+            : handler.channel.size();
+        if (handler.checksum >= 0) {
+          // resume only if the part already received is the same as ours
+          long ours = handler.start > size ? -1
+              : handler.content != null
+                  ? Checkpoint.checksum(handler.content, handler.start)
+                  : Checkpoint.checksum(handler.channel, handler.start);
+          if (ours >= 0 && handler.checksum == ours) {
+            System.out.println("resuming " + handler.fileName + " at "
+                + handler.start);
+            handler.ranged = true;
+          } else
+            handler.start = 0;
+        }
+      } catch (IOException e) {
+        System.err.println(e);
+        return;
+      }
+      long end = Math.min(handler.end, size);
+      handler.downside.send("PUT " + handler.fileName + ' ' + CHUNKED + ' '
+          + size + (handler.ranged ? " " + handler.start + ' ' + end : "")
+          + (handler.deflate ? " " + DEFLATE : ""));
+      // a cached file is sent from the cache, without a copy, and the others
+      // are read ahead, so that the disk is not waited for
+      ReadAhead readAhead = handler.content == null
+          ? new ReadAhead(handler.channel, handler.start, end, BLOCK_SIZE,
+              "Reader of " + handler.fileName)
+          : null;
+      ByteBuffer chunk = ByteBuffer.allocate(CHUNK_HEADER + CHUNK_SIZE);
+      CRC32C checksum = new CRC32C();
+      ChunkDeflater deflater = handler.deflate ? new ChunkDeflater() : null;
+      long offset = handler.start, sent = 0;
+      try {
+        while (offset < end && !handler.stopped) {
+          ByteBuffer block;
+          if (readAhead == null) {
+            block = handler.content.duplicate();
+            block.limit((int) Math.min(offset + BLOCK_SIZE, end));
+            block.position((int) offset);
+          } else if ((block = readAhead.next()) == null)
+            break;
+          while (block.hasRemaining()) {
+            chunk.clear();
+            chunk.position(CHUNK_HEADER);
+            int length = deflater == null ? 0 : deflater.deflate(block, chunk);
+            boolean compressed = length > 0;
+            if (!compressed)
+              length = Math.min(CHUNK_SIZE, block.remaining());
+            ByteBuffer data = block.slice();
+            data.limit(length);
+            checksum.reset();
+            checksum.update(data);
+            data.rewind();
+            if (!compressed)
+              chunk.put(data);
+            chunk.flip();
+            chunk.putLong(0, compressed ? offset | COMPRESSED : offset);
+            chunk.putInt(8, (int) checksum.getValue());
+            sent += chunk.remaining() - CHUNK_HEADER;
+            handler.downside.send(chunk);
+            block.position(block.position() + length);
+            offset += length;
+          }
+        }
+      } catch (@SuppressWarnings("unused") ClosedChannelException e) {
+        // closed by a CLOSE from the remote, which does not want more
+      } catch (IOException e) {
+        System.err.println(e);
+      } finally {
+        if (readAhead != null)
+          readAhead.close();
+        if (deflater != null) {
+          deflater.end();
+          System.out.println((offset - handler.start) + " bytes of "
+              + handler.fileName + " sent as " + sent);
+        }
+      }
+    }
+  }
+
+  /**
+   * Deflates the data of the chunks sent, as much of it into each chunk as
+   * fits, unless it does not compress: the following chunks are then sent as
+   * they are, without trying.
+   */
+  private static class ChunkDeflater {
+    private final Deflater deflater = new Deflater(COMPRESSION_LEVEL);
+    /** the number of bytes to try first, after how well the data compresses */
+    private int span = 4 * CHUNK_SIZE;
+    /** the number of chunks still to be sent as they are */
+    private int bypass = 0;
+
+    ChunkDeflater() {
+    }
+
+    /**
+     * Deflates the beginning of some data into a chunk.
+     *
+     * @param data
+     *          the data to send, from its position on, left unchanged
+     * @param chunk
+     *          where to put the deflated data, from its position to its
+     *          limit, and whose position is left after it
+     * @return the number of bytes of data deflated into the chunk, or 0 if
+     *         the chunk is to be sent as it is
+     */
+    int deflate(ByteBuffer data, ByteBuffer chunk) {
+      if (this.bypass > 0) {
+        this.bypass--;
+        return 0;
+      }
+      int start = chunk.position();
+      int room = chunk.remaining();
+      // less and less data, until it fits in the chunk once deflated
+      for (int n = Math.min(this.span, data.remaining());; n /= 2) {
+        ByteBuffer input = data.slice();
+        input.limit(n);
+        this.deflater.reset();
+        this.deflater.setInput(input);
+        this.deflater.finish();
+        chunk.position(start);
+        this.deflater.deflate(chunk);
+        int produced = chunk.position() - start;
+        if (this.deflater.finished() && produced < n) {
+          // next time, enough data to nearly fill the chunk
+          this.span = (int) Math.min(MAX_RATIO * room,
+              Math.max(room, (long) n * room * 7 / 8 / Math.max(1, produced)));
+          return n;
+        }
+        if (n <= room)
+          break;
+      }
+      chunk.position(start);
+      this.span = room;
+      this.bypass = BYPASS_CHUNKS;
+      return 0;
+    }
+
+    /** Frees the deflater. */
+    void end() {
+      this.deflater.end();
+    }
   }
 
   /** analyze the first line as a query */
   private void handleINIT(String payload) {
     String[] words = payload.split("\\s+");
-    if (words.length != 2) {
-      error("INIT state, bad format: " + payload);
-      return;
+    // the offer of compressed chunks by a GET, accepted by the PUT
+    if (words.length >= 3 && words[words.length - 1].equals(DEFLATE)) {
+      this.deflate = true;
+      words = Arrays.copyOf(words, words.length - 1);
     }
-    if (words[0].equals("PUT")) {
+    if (words.length >= 2 && words[0].equals("PUT")) {
       System.out.println(payload); // display the PUT line
       this.fileName = words[1];
+      handlePUT(words);
+      return;
+    }
+    if (words.length >= 2 && words[0].equals("GET")) {
+      System.out.println(payload); // display the GET line
+      this.fileName = words[1];
+      handleGET(words);
+      return;
+    }
+    error("INIT state, bad query: " + payload);
+    return;
+  }
+
+  /**
+   * PUT name, or PUT name CHUNKED size for the whole file, or PUT name CHUNKED
+   * size start end for a part of it
+   */
+  private void handlePUT(String[] words) {
+    boolean chunked = words.length > 2 && words[2].equals(CHUNKED);
+    if (!(words.length == 2 || chunked
+        && (words.length == 3 || words.length == 4 || words.length == 6))) {
+      error("INIT state, bad format: " + String.join(" ", words));
+      return;
+    }
+    File dir = new File(this.rootDir);
+    if (CACHE != null)
+      CACHE.invalidate(new File(dir, this.fileName));
+    if (chunked) {
+      long _size;
       try {
-        this.writer = new FileWriter(new File(this.rootDir, this.fileName));
-      } catch (IOException e) {
+        _size = words.length > 3 ? Long.parseLong(words[3]) : -1;
+        this.start = words.length == 6 ? Long.parseLong(words[4]) : 0;
+      } catch (NumberFormatException e) {
         error(e.getMessage());
         return;
       }
+      // a part of another version of the file than the one being received
+      // by the other receivers must not be written into it
+      if (this.checkpoint != null && this.checkpoint.getSize() != _size) {
+        error("INIT state, " + this.fileName + " of " + _size
+            + " bytes instead of " + this.checkpoint.getSize());
+        return;
+      }
+      boolean part = words.length == 6;
+      this.stateLock.lock();
+      try {
+        // opened and written by a thread of its own, so that this one never
+        // waits on the disk, the chunks being queued meanwhile
+        this.opening = true;
+        this.writeBehind = new WriteBehind(new WriteBehind.Opening() {
+          @SuppressWarnings("synthetic-access")
+          @Override
+          public FileChannel open(WriteBehind stage) throws IOException {
+            return openPUT(stage, part, _size);
+          }
+        }, "Writer of " + this.fileName);
+        this.currentState = State.RECV;
+        this.stateChanged.signalAll();
+      } finally {
+        this.stateLock.unlock();
+      }
+      return;
+    }
+    try {
+      this.writer = new FileWriter(new File(dir, this.fileName));
+    } catch (IOException e) {
+      error(e.getMessage());
+      return;
+    }
+    this.stateLock.lock();
+    try {
       this.currentState = State.RECV;
+      this.stateChanged.signalAll();
+    } finally {
+      this.stateLock.unlock();
+    }
+  }
+
+  /**
+   * opens the file of a chunked PUT, preallocated when its size is announced,
+   * along its checkpoint: run by the writer thread, before the first write;
+   * a failure is reported as the one of the PUT
+   */
+  private FileChannel openPUT(WriteBehind stage, boolean part, long _size)
+      throws IOException {
+    File dir = new File(this.rootDir);
+    File file = new File(dir, this.fileName);
+    FileChannel channel = null;
+    try {
+      // a part goes into the file as it is, the whole file replaces it
+      channel = part
+          ? FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+              StandardOpenOption.WRITE)
+          : FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+              StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+      if (_size >= 0) {
+        WriteBehind.preallocate(channel, _size);
+        // a part adds to what has been received before
+        if (part && this.checkpoint == null)
+          this.checkpoint = Checkpoint.load(dir, this.fileName);
+        if (!part || this.checkpoint == null
+            || this.checkpoint.getSize() != _size)
+          this.checkpoint = Checkpoint.create(dir, this.fileName, _size);
+        stage.checkpointTo(this.checkpoint, this.start);
+      }
+    } catch (IOException e) {
+      if (channel != null)
+        channel.close();
+      opened(-1);
+      error(e.getMessage());
+      throw e;
+    }
+    opened(_size);
+    return channel;
+  }
+
+  /** announces the size of the file received, once it is ready */
+  private void opened(long _size) {
+    this.stateLock.lock();
+    try {
+      this.size = _size;
+      this.opening = false;
+      this.stateChanged.signalAll();
+    } finally {
+      this.stateLock.unlock();
+    }
+  }
+
+  /**
+   * GET name, or GET name CHUNKED for the whole file, or GET name offset
+   * length for a part of it, or GET name RESUME offset checksum for the rest
+   * of it, when the checksum matches the one of its beginning
+   */
+  private void handleGET(String[] words) {
+    boolean chunked = true;
+    try {
+      if (words.length == 3 && words[2].equals(CHUNKED)) {
+        // the whole file
+      } else if (words.length == 4) {
+        this.start = Long.parseLong(words[2]);
+        this.end = this.start + Long.parseLong(words[3]);
+        this.ranged = true;
+      } else if (words.length == 5 && words[2].equals(RESUME)) {
+        this.start = Long.parseLong(words[3]);
+        this.checksum = Long.parseLong(words[4]);
+      } else if (words.length == 2)
+        chunked = false;
+      else {
+        error("INIT state, bad format: " + String.join(" ", words));
+        return;
+      }
+    } catch (@SuppressWarnings("unused") NumberFormatException e) {
+      error("INIT state, bad number: " + String.join(" ", words));
       return;
     }
-    if (words[0].equals("GET")) {
-      System.out.println(payload); // display the GET line
-      this.fileName = words[1];
-      try {
-        this.reader = new Scanner(new File(this.rootDir, this.fileName));
+    if (this.start < 0 || this.end < this.start) {
+      error("INIT state, bad range: " + String.join(" ", words));
+      return;
+    }
+    try {
+      File file = new File(this.rootDir, this.fileName);
+      // opened even if the file is cached, which the sender finds out
+      if (chunked)
+        this.channel = FileChannel.open(file.toPath(),
+            StandardOpenOption.READ);
+      else
+        this.reader = new Scanner(file);
+    } catch (IOException e) {
+      // the remote gets a CLOSE instead of a PUT, rather than an empty file
+      error(e.toString());
+      return;
+    }
+    this.currentState = State.SEND;
+    // a thread is needed here, as handle() must return fast
+    Threads.start(new Sender(), "Sender of " + this.fileName);
+  }
+
+  /**
+   * Builds the query for getting a file in chunks, which resumes its transfer
+   * if a checkpoint shows that a part of it has been received before.
+   *
+   * @param rootDir
+   *          the directory where to put the file
+   * @param fileName
+   *          the name of the file
+   * @return the query to be sent to the FileHandler which has the file
+   */
+  public static String chunkedQuery(String rootDir, String fileName) {
+    Checkpoint checkpoint = Checkpoint.load(new File(rootDir), fileName);
+    long prefix = checkpoint == null ? 0 : checkpoint.prefix();
+    if (prefix > 0)
+      try (FileChannel file = FileChannel.open(
+          new File(rootDir, fileName).toPath(), StandardOpenOption.READ)) {
+        // the part received must be the same as the one of the sender
+        long checksum = Checkpoint.checksum(file, prefix);
+        if (checksum >= 0)
+          return "GET " + fileName + ' ' + RESUME + ' ' + prefix + ' '
+              + checksum + offers();
       } catch (IOException e) {
         System.err.println(e);
       }
-      this.currentState = State.SEND;
-      // a thread is needed here, as handle() must return fast
-      new Thread(new Sender()).start();
+    return "GET " + fileName + ' ' + CHUNKED + offers();
+  }
+
+  /** @return what to append to a chunked GET, after the options wanted */
+  public static String offers() {
+    return COMPRESSION ? " " + DEFLATE : "";
+  }
+
+  /** queue a chunk for being written at its offset in the file */
+  private void handleCHUNK(ByteBuffer chunk) {
+    if (chunk.remaining() < CHUNK_HEADER) {
+      error("RECV state, bad chunk of " + chunk.remaining() + " bytes");
       return;
     }
-    error("INIT state, bad query: " + payload);
-    return;
+    long offset = chunk.getLong();
+    int expected = chunk.getInt();
+    if (this.rejected)
+      return; // the following chunks would leave a hole
+    ByteBuffer data = chunk.slice();
+    if (offset < 0) {
+      offset &= ~COMPRESSED;
+      data = inflate(data);
+    }
+    if (data != null) {
+      this.crc.reset();
+      this.crc.update(data);
+      data.rewind();
+    }
+    if (data == null || (int) this.crc.getValue() != expected) {
+      // so that the rest is fetched again, from this offset on
+      System.err.println("bad chunk at " + offset + " of " + this.fileName);
+      this.rejected = true;
+      queueCLOSE();
+      return;
+    }
+    long next = offset + data.remaining();
+    this.stateLock.lock();
+    try {
+      if (this.currentState == State.CLOSED)
+        return; // aborted
+    } finally {
+      this.stateLock.unlock();
+    }
+    // the received bytes are never modified, so they are queued without a
+    // copy; refused if the remote sends far more than the room advertised
+    if (!this.writeBehind.write(data, offset)) {
+      System.err.println("too much pending at " + offset + " of "
+          + this.fileName);
+      this.rejected = true;
+      queueCLOSE();
+      return;
+    }
+    this.received = next;
+    if (next >= this.until)
+      queueCLOSE();
+  }
+
+  /**
+   * @return the inflated data of a compressed chunk, or {@code null} if it
+   *         cannot be inflated
+   */
+  private ByteBuffer inflate(ByteBuffer data) {
+    if (!this.deflate)
+      return null; // not accepted by the PUT
+    if (this.inflater == null) {
+      // not ended, as abort() may come while a chunk is inflated, but freed
+      // with the handler
+      this.inflater = new Inflater();
+      this.inflated = ByteBuffer.allocate(MAX_RATIO * CHUNK_SIZE);
+    }
+    this.inflater.reset();
+    this.inflater.setInput(data);
+    this.inflated.clear();
+    try {
+      this.inflater.inflate(this.inflated);
+    } catch (@SuppressWarnings("unused") DataFormatException e) {
+      return null;
+    }
+    if (!this.inflater.finished())
+      return null;
+    this.inflated.flip();
+    // copied, as the buffer is reused while the data waits to be written
+    return ByteBuffer.allocate(this.inflated.remaining()).put(this.inflated)
+        .flip();
+  }
+
+  /**
+   * @return the room left in the queue, lowered while the chunks waiting to be
+   *         written fill the write-behind stage
+   */
+  @Override
+  public int getFreeCapacity() {
+    int free = super.getFreeCapacity();
+    WriteBehind w = this.writeBehind;
+    return w == null ? free
+        : Math.min(free, w.getRoom() / (CHUNK_HEADER + CHUNK_SIZE));
+  }
+
+  /**
+   * Waits for the PUT line announcing the file to be received.
+   * 
+   * @return the size of the file, or -1 if unknown or if nothing is to be
+   *         received
+   */
+  public long awaitSize() {
+    this.stateLock.lock();
+    try {
+      while (this.currentState == State.INIT || this.opening)
+        this.stateChanged.awaitUninterruptibly();
+    } finally {
+      this.stateLock.unlock();
+    }
+    return this.size;
+  }
+
+  /**
+   * @return the offset following the last chunk received, or -1 if none, the
+   *         chunks of a part of a file being received in order
+   */
+  public long getReceived() {
+    return this.received;
+  }
+
+  /** @return the checkpoint of the file being received, or {@code null} */
+  public Checkpoint getCheckpoint() {
+    return this.checkpoint;
+  }
+
+  /**
+   * Stops receiving the file at the specified offset, the following part
+   * being received otherwise: once there, the sender is sent a CLOSE, and the
+   * chunks which were already on their way are still written.
+   * 
+   * @param offset
+   *          the offset at which to stop
+   */
+  public void stopAt(long offset) {
+    this.until = offset;
+    if (this.received >= offset)
+      sendCLOSE();
+  }
+
+  /** @return {@code true} if the transfer has been given up by abort() */
+  public boolean isAborted() {
+    return this.aborted;
+  }
+
+  /**
+   * Gives up at once, without waiting for a CLOSE from the remote, which has
+   * stopped answering. What has been received so far is kept.
+   */
+  public void abort() {
+    this.stateLock.lock();
+    try {
+      if (this.currentState == State.CLOSED)
+        return;
+      this.aborted = true;
+      closeChannel();
+      this.currentState = State.CLOSED;
+      this.stateChanged.signalAll();
+    } finally {
+      this.stateLock.unlock();
+    }
+    closeFile(); // letItGo() waits for it
   }
 
   /** handle the successive payloads as the content of the file */
@@ -223,7 +954,16 @@ public class FileHandler extends Handler {
   public void handle(Message message) {
     if (DEBUG)
       System.err.println("FILE RECEIVE " + message);
-    String payload = message.payload;
+    if ((this.currentState == State.RECV
+        || this.currentState == State.CLOSE_SENT) && this.writeBehind != null) {
+      // binary data, never decoded as text
+      ByteBuffer bytes = message.bytes();
+      if (!CLOSE_BYTES.equals(bytes)) {
+        handleCHUNK(bytes);
+        return;
+      }
+    }
+    String payload = message.text();
     if (CLOSE.equals(payload)) {
       handleCLOSE();
       return;
@@ -2,25 +2,40 @@ import java.net.SocketException;
 
 public class FileServer {
 
-  public static final String SYNTAX = "syntax : java FileServer serverPort rootDir";
+  public static final String SYNTAX = "syntax : java FileServer serverPort rootDir [sockets [THREAD_PER_HANDLER|EVENT_LOOP|VIRTUAL_THREAD]]";
 
   public static void main(String[] args) {
-    if (args.length != 2) {
+    if (args.length < 2 || args.length > 4) {
       System.err.println(SYNTAX);
       return;
     }
     int localPort = -1;
+    int sockets = 1;
+    // by default, a thread per handler, as a FileHandler still opens the
+    // files and writes the lines of a text file in handle(): with EVENT_LOOP,
+    // the handlers of all the connections share one thread per core
+    Handler.Execution execution = Handler.Execution.THREAD_PER_HANDLER;
     try {
       localPort = Integer.parseInt(args[0]);
-    } catch (@SuppressWarnings("unused") NumberFormatException e) {
+      if (args.length >= 3)
+        sockets = Integer.parseInt(args[2]);
+      if (args.length == 4)
+        execution = Handler.Execution.valueOf(args[3]);
+    } catch (@SuppressWarnings("unused") IllegalArgumentException e) {
       System.err.println(SYNTAX);
     }
     final String rootDir = args[1];
 
     GroundLayer.RELIABILITY = 0.9;
+    Handler.EXECUTION = execution;
+    // the files asked by many clients are read once
+    if (FileCache.BUDGET > 0)
+      FileHandler.CACHE = new FileCache(FileCache.BUDGET);
     Handler ground = null;
     try {
-      ground = new GroundHandler(localPort);
+      // several sockets share the port, each one with its own receive thread
+      ground = sockets > 1 ? new GroundHandler(new int[] { localPort }, sockets)
+          : new GroundHandler(localPort);
     } catch (SocketException e) {
       System.err.println(e.getMessage());
       return;
@@ -35,7 +50,7 @@ public class FileServer {
       } catch (@SuppressWarnings("unused") InterruptedException e) {
         break;
       }
-      new Thread("Thread for " + parameters) {
+      Thread session = Threads.newThread(new Runnable() {
         @Override
         public void run() {
           Handler connected = new ConnectedHandler(dispatcher,
@@ -44,7 +59,8 @@ public class FileServer {
           fileHandler.letItGo();
           connected.close();
         }
-      }.start();
+      }, "Thread for " + parameters);
+      session.start();
     }
   }
 }
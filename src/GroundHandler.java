@@ -1,4 +1,6 @@
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
 import java.net.SocketAddress;
 import java.net.SocketException;
 
@@ -8,9 +10,52 @@ import java.net.SocketException;
  */
 public class GroundHandler extends Handler {
 
+  /**
+   * The largest number of resolved addresses kept, so that a flood of packets
+   * from distinct addresses cannot make them grow without end.
+   */
+  private static final int MAX_RESOLVED = 4096;
+
+  /** The destination addresses already resolved, by their {@code String}. */
+  private final ConcurrentHashMap<String, SocketAddress> resolved;
+
+  /** The sockets below this handler. */
+  private final GroundLayer groundLayer;
+
+  /**
+   * Initializes a ground handler over a single socket, whose incoming messages
+   * are queued and processed by a single thread.
+   * 
+   * @param localPort
+   *          the local port, 0 for any
+   */
   GroundHandler(int localPort) throws SocketException {
     super(null, 0, true);
-    GroundLayer.start(localPort, this);
+    this.resolved = new ConcurrentHashMap<String, SocketAddress>();
+    this.groundLayer = new GroundLayer(localPort, this);
+  }
+
+  /**
+   * Initializes a ground handler over several sockets, each one with its own
+   * receive thread. Every specified port is shared by the specified number of
+   * sockets (SO_REUSEPORT). When there is more than one socket, incoming
+   * messages are not queued, but passed upwards at once by the receive
+   * threads, so the handlers stacked on this one must accept concurrent calls.
+   * 
+   * @param localPorts
+   *          the local ports, 0 for any
+   * @param socketsPerPort
+   *          the number of sockets sharing each port
+   */
+  GroundHandler(int[] localPorts, int socketsPerPort) throws SocketException {
+    super(null, 0, localPorts.length * socketsPerPort == 1);
+    this.resolved = new ConcurrentHashMap<String, SocketAddress>();
+    this.groundLayer = new GroundLayer(localPorts, socketsPerPort, this);
+  }
+
+  /** @return the sockets below this handler */
+  public GroundLayer getGroundLayer() {
+    return this.groundLayer;
   }
 
   /**
@@ -29,6 +74,34 @@ public class GroundHandler extends Handler {
    */
   @Override
   public void send(String payload, String destinationAddress) {
+    this.groundLayer.send(payload, toSocketAddress(destinationAddress));
+  }
+
+  /**
+   * Sends raw bytes to the specified destination address, using
+   * {@link GroundLayer#send(ByteBuffer, SocketAddress)}. The address format is
+   * the same as for {@link #send(String,String)}.
+   * 
+   * @param data
+   *          the bytes to be sent, from position to limit
+   * @param destinationAddress
+   *          a {@code String} identifying the destination
+   */
+  @Override
+  public void send(ByteBuffer data, String destinationAddress) {
+    this.groundLayer.send(data, toSocketAddress(destinationAddress));
+  }
+
+  /**
+   * Resolves a destination address, once: the resolved addresses are kept, so
+   * that sending a packet neither parses the address nor queries the DNS.
+   * Beyond {@link #MAX_RESOLVED}, they are all forgotten at once, the active
+   * ones being resolved again.
+   */
+  private SocketAddress toSocketAddress(String destinationAddress) {
+    SocketAddress destinationSocket = this.resolved.get(destinationAddress);
+    if (destinationSocket != null)
+      return destinationSocket;
     String[] address = destinationAddress.split(":");
     if (address.length != 2)
       throw new IllegalArgumentException("wrong address");
@@ -36,12 +109,14 @@ public class GroundHandler extends Handler {
     boolean slashFormat = hostParts.length >= 2 && hostParts[1].length() > 0;
     String host = slashFormat ? hostParts[1] : hostParts[0];
     int port = Integer.parseInt(address[1]);
-    SocketAddress destinationSocket = new InetSocketAddress(host, port);
-    System.err.println(host + ' ' + port);
-    System.err.println(destinationSocket);
-    GroundLayer.send(payload, destinationSocket);
+    destinationSocket = new InetSocketAddress(host, port);
+    if (this.resolved.size() >= MAX_RESOLVED)
+      this.resolved.clear();
+    this.resolved.put(destinationAddress, destinationSocket);
+    return destinationSocket;
   }
 
+
   /**
    * Do not call, always throws an UnsupportedOperationException.
    * 
@@ -60,7 +135,7 @@ public class GroundHandler extends Handler {
   @Override
   public void close() { // nothing
     super.close();
-    GroundLayer.close(); // helps the termination of the JVM
+    this.groundLayer.close(); // helps the termination of the JVM
   }
 
 }
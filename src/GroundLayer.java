@@ -1,7 +1,16 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class GroundLayer
 {
@@ -18,87 +27,415 @@ public class GroundLayer
      */
     public static double RELIABILITY = 1.0;
 
-    private static DatagramSocket localSocket = null;
-    private static Thread receiver = null;
-    private static Handler handler = null;
+    /**
+     * Sizes of the kernel buffers of each socket (SO_RCVBUF and SO_SNDBUF), set
+     * before creating a GroundLayer. 0 keeps the system defaults.
+     */
+    public static int RECEIVE_BUFFER_SIZE = 0;
+    public static int SEND_BUFFER_SIZE = 0;
+
+    /**
+     * How many datagrams each socket keeps while its kernel send buffer is
+     * full, to be sent once it has room again; beyond, they are dropped.
+     */
+    public static int MAX_PENDING_SENDS = 64;
+
+    /** the largest payload of a UDP datagram */
+    public static final int MAX_DATAGRAM_SIZE = 65507;
+
+    /** the size of the small send buffers, enough for a chunk of a file and its headers */
+    public static final int SMALL_DATAGRAM_SIZE = 2048;
+
+    /**
+     * direct buffers, recycled by the sends and the receivers, shared by all the
+     * instances: most datagrams fit in a small one, kept for every send which
+     * may be in progress or pending at once; the largest ones, which the
+     * receivers keep for themselves, are rarely sent, and kept one per core
+     */
+    private static final BufferPool SMALL_POOL = new BufferPool(SMALL_DATAGRAM_SIZE, 256);
+    private static final BufferPool POOL = new BufferPool(MAX_DATAGRAM_SIZE, Runtime.getRuntime().availableProcessors());
+
+    /** datagrams dropped because the kernel send buffer was full, with too many pending */
+    private final AtomicLong sendOverflows = new AtomicLong();
+    /** datagrams received but refused by the handler, whose queue was full */
+    private final AtomicLong handlerRefusals = new AtomicLong();
+
+    private final DatagramChannel[] channels;
+    private final int[] localPorts;
+    private final receiverThread[] receivers;
+    private final Handler handler;
+
+    /**
+     * Opens a single socket on the specified port, with its receive thread.
+     *
+     * @param _localPort the local port, 0 for any
+     * @param _handler   the handler to which received messages are passed
+     */
+    public GroundLayer(int _localPort, Handler _handler) throws SocketException
+    {
+        this(new int[] { _localPort }, 1, _handler);
+    }
+
+    /**
+     * Opens several sockets, each one with its own receive thread, so that the
+     * reception is spread over several cores. Every port gets the specified
+     * number of sockets, sharing it thanks to SO_REUSEPORT: the kernel then
+     * hashes each remote peer onto one of them, so the datagrams of a peer
+     * keep their order. Since receive threads run concurrently, the handler
+     * must accept concurrent calls to {@link Handler#receive}.
+     *
+     * @param _localPorts     the local ports, 0 for any
+     * @param _socketsPerPort the number of sockets sharing each port
+     * @param _handler        the handler to which received messages are passed
+     */
+    public GroundLayer(int[] _localPorts, int _socketsPerPort, Handler _handler) throws SocketException
+    {
+        if (_localPorts.length < 1 || _socketsPerPort < 1)
+            throw new IllegalArgumentException("at least one socket is needed");
+        this.handler = _handler;
+        this.channels = new DatagramChannel[_localPorts.length * _socketsPerPort];
+        this.localPorts = new int[this.channels.length];
+        this.receivers = new receiverThread[this.channels.length];
+
+        try
+        {
+            int i = 0;
+            for (int port : _localPorts)
+                for (int n = 0; n < _socketsPerPort; n++, i++)
+                {
+                    // the sockets sharing a port bind to the one actually given to the first
+                    this.channels[i] = open(n == 0 ? port : this.localPorts[i - n], _socketsPerPort > 1);
+                    this.localPorts[i] = ((InetSocketAddress) this.channels[i].getLocalAddress()).getPort();
+                    this.receivers[i] = new receiverThread(this.handler, this.channels[i], POOL, this.handlerRefusals,
+                            this.sendOverflows);
+                }
+        } catch (IOException e)
+        {
+            for (DatagramChannel channel : this.channels)
+                if (channel != null)
+                    try
+                    {
+                        channel.close();
+                    } catch (IOException ignored) {}
+            for (receiverThread receiver : this.receivers)
+                if (receiver != null)
+                    try
+                    {
+                        receiver.selector.close();
+                    } catch (IOException ignored) {}
+            if (e instanceof SocketException)
+                throw (SocketException) e;
+            throw new SocketException(e.getMessage());
+        }
+
+        for (Thread receiver : this.receivers)
+        {
+            receiver.setDaemon(true);
+            receiver.start();
+        }
+    }
+
+    private static DatagramChannel open(int port, boolean reusePort) throws IOException
+    {
+        DatagramChannel channel = DatagramChannel.open();
+        if (reusePort)
+        {
+            if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT))
+            {
+                channel.close();
+                throw new SocketException("SO_REUSEPORT is not supported on this platform");
+            }
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        if (RECEIVE_BUFFER_SIZE > 0)
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+        if (SEND_BUFFER_SIZE > 0)
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, SEND_BUFFER_SIZE);
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        return channel;
+    }
 
-    public static void start(int _localPort, Handler _handler) throws SocketException
+    /** @return the local port of the first socket */
+    public int getLocalPort()
     {
-        if (handler != null)
-            throw new IllegalStateException("GroundLayer is already started");
-        handler = _handler;
+        return this.localPorts[0];
+    }
 
-        localSocket = new DatagramSocket(_localPort);
-        receiver = new receiverThread(handler, localSocket, CONVERTER);
+    /** @return the number of sockets, and so of receive threads */
+    public int getSocketCount()
+    {
+        return this.channels.length;
+    }
 
-        receiver.setDaemon(true);
-        receiver.start();
+    public void send(String payload, SocketAddress destinationAddress)
+    {
+        send(ByteBuffer.wrap(payload.getBytes(CONVERTER)), destinationAddress);
     }
 
-    public static void send(String payload, SocketAddress destinationAddress)
+    /**
+     * Sends a datagram, without ever blocking. When there are several sockets,
+     * a destination is always sent to from the same one. If the kernel send
+     * buffer of the socket is full, the datagram is left to its receive
+     * thread, which sends it once the socket is writable again; a datagram may
+     * then overtake another, as in the network.
+     */
+    public void send(ByteBuffer data, SocketAddress destinationAddress)
     {
         if (Math.random() <= RELIABILITY)
         {
+            int i = (destinationAddress.hashCode() & Integer.MAX_VALUE) % this.channels.length;
+            ByteBuffer buffer = acquire(data.remaining());
+            boolean kept = false;
             try
             {
-                byte[] data = payload.getBytes(CONVERTER);
-                DatagramPacket packet = new DatagramPacket(data, data.length, destinationAddress);
-                localSocket.send(packet);
+                buffer.put(data.duplicate());
+                buffer.flip();
+                if (this.receivers[i].hasPending() || this.channels[i].send(buffer, destinationAddress) == 0)
+                    kept = this.receivers[i].defer(buffer, destinationAddress);
             } catch (IOException ignored) {}
+            finally
+            {
+                if (!kept)
+                    release(buffer);
+            }
+        }
+    }
+
+    /** @return a cleared send buffer, from the pool of the buffers large enough */
+    static ByteBuffer acquire(int size)
+    {
+        return (size <= SMALL_DATAGRAM_SIZE ? SMALL_POOL : POOL).acquire();
+    }
+
+    /** gives a send buffer back to its pool */
+    static void release(ByteBuffer buffer)
+    {
+        (buffer.capacity() == SMALL_DATAGRAM_SIZE ? SMALL_POOL : POOL).release(buffer);
+    }
+
+    /** @return the number of datagrams dropped because the kernel send buffer was full, with too many pending */
+    public long getSendOverflows()
+    {
+        return this.sendOverflows.get();
+    }
+
+    /** @return the number of datagrams refused by the handler, whose queue was full */
+    public long getHandlerRefusals()
+    {
+        return this.handlerRefusals.get();
+    }
+
+    /**
+     * Reads the number of datagrams dropped by the kernel because the receive
+     * buffers of the sockets were full. Only available on Linux, from the last
+     * column of /proc/net/udp and /proc/net/udp6.
+     *
+     * @return the number of dropped datagrams, or -1 if unknown
+     */
+    public long getReceiveOverflows()
+    {
+        long drops = -1;
+        for (String table : new String[] { "/proc/net/udp", "/proc/net/udp6" })
+        {
+            try (BufferedReader reader = new BufferedReader(new FileReader(table)))
+            {
+                String line = reader.readLine(); // titles
+                while ((line = reader.readLine()) != null)
+                {
+                    String[] columns = line.trim().split("\\s+");
+                    if (columns.length > 12 && is_local(columns[1]))
+                        drops = Math.max(drops, 0) + Long.parseLong(columns[columns.length - 1]);
+                }
+            } catch (IOException | NumberFormatException ignored) {}
         }
+        return drops;
+    }
+
+    private boolean is_local(String address)
+    {
+        int port = Integer.parseInt(address.substring(address.indexOf(':') + 1), 16);
+        for (int localPort : this.localPorts)
+            if (localPort == port)
+                return true;
+        return false;
     }
 
-    public static void close()
+    public void close()
     {
-        receiver.interrupt();
-        localSocket.close();
-        handler = null;
+        for (Thread receiver : this.receivers)
+            receiver.interrupt();
+        for (DatagramChannel channel : this.channels)
+            try
+            {
+                channel.close();
+            } catch (IOException ignored) {}
     }
 }
 
 
 class receiverThread extends Thread implements Runnable
 {
+    /**
+     * the size of the arrays the received datagrams are copied into, one after
+     * the other, rather than each one into its own array
+     */
+    static final int SLAB_SIZE = 256 * 1024;
+    static final AtomicLong DEFERS = new AtomicLong();
+
     Handler handler;
-    DatagramSocket socket;
-    Charset charset;
+    DatagramChannel channel;
+    BufferPool pool;
+    AtomicLong refusals;
+    AtomicLong overflows;
+    Selector selector;
+
+    /** the last source address and its formatting, most datagrams come from the same peer */
+    SocketAddress lastAddress = null;
+    String lastAddressString = null;
+
+    /** the array being filled with the received datagrams, and its length used */
+    byte[] slab = new byte[SLAB_SIZE];
+    int slabUsed = 0;
+
+    /** a datagram waiting for room in the kernel send buffer, in its send buffer */
+    static class Pending
+    {
+        final ByteBuffer buffer;
+        final SocketAddress destination;
 
-    public receiverThread(Handler handler, DatagramSocket socket, Charset charset)
+        Pending(ByteBuffer buffer, SocketAddress destination)
+        {
+            this.buffer = buffer;
+            this.destination = destination;
+        }
+    }
+
+    final ConcurrentLinkedQueue<Pending> pending = new ConcurrentLinkedQueue<Pending>();
+    /** the number of pending datagrams, counted before they are queued */
+    final AtomicInteger pendingCount = new AtomicInteger();
+
+    public receiverThread(Handler handler, DatagramChannel channel, BufferPool pool, AtomicLong refusals,
+                          AtomicLong overflows) throws IOException
     {
         this.handler = handler;
-        this.socket = socket;
-        this.charset = charset;
+        this.channel = channel;
+        this.pool = pool;
+        this.refusals = refusals;
+        this.overflows = overflows;
+        this.selector = Selector.open();
+    }
+
+    /** @return {@code true} if datagrams are waiting to be sent, which a new one must not overtake */
+    boolean hasPending()
+    {
+        return pendingCount.get() > 0;
+    }
+
+    /**
+     * Keeps a datagram until the socket is writable, unless too many are
+     * already waiting.
+     *
+     * @return {@code true} if the datagram is kept, its buffer with it
+     */
+    boolean defer(ByteBuffer buffer, SocketAddress destination)
+    {
+        if (pendingCount.incrementAndGet() > GroundLayer.MAX_PENDING_SENDS)
+        {
+            pendingCount.decrementAndGet();
+            overflows.incrementAndGet();
+            return false;
+        }
+        pending.offer(new Pending(buffer, destination));
+        if (DEFERS.incrementAndGet() % 100 == 1) System.err.println("DEFER " + DEFERS.get() + " overflows " + overflows.get());
+        selector.wakeup();
+        return true;
+    }
+
+    /**
+     * Sends the pending datagrams, as long as the kernel takes them.
+     *
+     * @return {@code true} if some are left, waiting for the socket to be writable
+     */
+    boolean flush()
+    {
+        Pending first;
+        while ((first = pending.peek()) != null) // one being queued wakes up the selector
+        {
+            try
+            {
+                if (channel.send(first.buffer, first.destination) == 0)
+                    return true;
+            } catch (IOException ignored) {} // dropped, as by the network
+            pending.poll();
+            pendingCount.decrementAndGet();
+            GroundLayer.release(first.buffer);
+        }
+        return false;
     }
 
     @Override
     public void run()
     {
-        while(!Thread.interrupted())
+        ByteBuffer buffer = pool.acquire();
+        try
         {
-            try
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            while(!Thread.interrupted())
             {
-                DatagramPacket packet = new DatagramPacket(new byte[1024], 1024);
-                socket.receive(packet);
-                Message msg = new Message(getDataFromPacket(packet), getAddressFromPacket(packet));
-                handler.receive(msg);
+                selector.select();
+                selector.selectedKeys().clear();
+                key.interestOps(flush() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+                SocketAddress source;
+                while ((source = channel.receive(buffer)) != null)
+                {
+                    buffer.flip();
+                    // the direct buffer is reused at once, whereas the message may be
+                    // kept by the handlers above: its bytes are copied next to the ones
+                    // of the previous datagrams, the array being left to the garbage
+                    // collector once full and every message in it dropped
+                    int length = buffer.remaining();
+                    if (SLAB_SIZE - slabUsed < length)
+                    {
+                        slab = new byte[SLAB_SIZE];
+                        slabUsed = 0;
+                    }
+                    buffer.get(slab, slabUsed, length);
+                    buffer.clear();
+                    Message msg = new Message(ByteBuffer.wrap(slab, slabUsed, length), getAddress(source));
+                    slabUsed += length;
+                    if (!handler.receive(msg))
+                        refusals.incrementAndGet();
+                }
             }
-            catch (IOException e)
+        }
+        catch (IOException e)
+        {
+            interrupt();
+        }
+        finally
+        {
+            pool.release(buffer);
+            try
             {
-                interrupt();
-            }
-
+                selector.close();
+            } catch (IOException ignored) {}
         }
     }
 
-    String getDataFromPacket(DatagramPacket packet)
+    String getAddress(SocketAddress source)
     {
-        // src: https://stackoverflow.com/questions/10159732/how-to-retrieve-string-from-datagrampacket/41518150
-        return new String(packet.getData(), packet.getOffset(), packet.getLength(), charset);
+        if (!source.equals(lastAddress))
+        {
+            lastAddress = source;
+            lastAddressString = getAddressFromPacket(source);
+        }
+        return lastAddressString;
     }
 
-    String getAddressFromPacket(DatagramPacket packet)
+    String getAddressFromPacket(SocketAddress source)
     {
-        return packet.getSocketAddress().toString();
+        return source.toString();
 //        String address = "";
 //        InetAddress inet_addr = packet.getAddress();
 //        String ip = inet_addr.getHostAddress() ;
@@ -1,5 +1,9 @@
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * This class provides a skeletal implementation of any message handler. To
@@ -9,24 +13,98 @@ import java.util.concurrent.LinkedBlockingQueue;
  */
 public abstract class Handler {
 
+  /**
+   * The ways queued messages are processed.
+   * 
+   * THREAD_PER_HANDLER: every queueing handler has its own processing thread
+   * EVENT_LOOP: queueing handlers share the loops of
+   * {@link EventLoopGroup#SHARED}, one per core
+   * VIRTUAL_THREAD: every queueing handler has its own virtual thread, as have
+   * the threads created through {@link Threads} (Java 21 or later, platform
+   * threads otherwise)
+   */
+  public static enum Execution {
+    THREAD_PER_HANDLER, EVENT_LOOP, VIRTUAL_THREAD
+  }
+
+  /**
+   * The way queued messages are processed by the handlers created afterwards.
+   * Whatever the way, the messages of a handler are handled one at a time and
+   * in their order of arrival.
+   */
+  public static Execution EXECUTION = Execution.THREAD_PER_HANDLER;
+
+  /**
+   * What {@link #receive} does with a message when the queue is full.
+   * 
+   * BLOCK: waits for room, slowing down the handler below, except on an event
+   * loop or on the thread of a timing wheel, which must not block and then
+   * get SIGNAL
+   * DROP_NEWEST: discards the incoming message
+   * DROP_OLDEST: discards the oldest queued message, to make room
+   * SIGNAL: refuses the message, returning {@code false} to the handler below
+   */
+  public static enum Overflow {
+    BLOCK, DROP_NEWEST, DROP_OLDEST, SIGNAL
+  }
+
+  /**
+   * The capacity of the queues of the handlers created afterwards, rounded up
+   * to a power of two.
+   */
+  public static int QUEUE_CAPACITY = 8;
+
+  /** The overflow policy of the handlers created afterwards. */
+  public static Overflow OVERFLOW = Overflow.SIGNAL;
+
+  /** How long a BLOCKed {@link #receive} sleeps before retrying. */
+  private static final long BLOCK_PAUSE = TimeUnit.MICROSECONDS.toNanos(100);
+
+  /** The maximum number of messages handled in a row by an event loop. */
+  private static final int BATCH_SIZE = 16;
+
   /** An integer used to identify this {@code Handler}. */
   private final int refNumber;
 
   /** A map to store and retrieve the handlers stacked above the current one. */
-  protected final ConcurrentHashMap<Integer, Handler> upsideHandlers;
+  protected final HandlerRegistry upsideHandlers;
 
   /** The {@code Handler} onto which the current one is stacked. */
   protected final Handler downside;
 
   /** A queue for storing incoming messages, before their processing. */
-  private LinkedBlockingQueue<Message> queue = null;
+  private RingBuffer<Message> queue = null;
 
-  /** The size of the queue for incoming messages. */
-  private static final int QUEUE_SIZE = 5;
+  /** What to do when the queue is full. */
+  private Overflow overflow;
+
+  /** The number of messages discarded because the queue was full. */
+  private final AtomicLong drops = new AtomicLong();
 
   /** the thread for processing messages from the queue. */
   private Thread processor = null;
 
+  /** {@code true} while the processor is parked, waiting for a message. */
+  private volatile boolean idle = false;
+
+  /** or the event loop, when several handlers share a thread. */
+  private Executor loop = null;
+
+  /** {@code true} while a drain of the queue is submitted to the loop. */
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+
+  /** Cleared by {@link #close}. */
+  private volatile boolean running = true;
+
+  /** The task submitted to the loop, processing a batch of messages. */
+  private final Runnable drain = new Runnable() {
+    @SuppressWarnings("synthetic-access")
+    @Override
+    public void run() {
+      Handler.this.drain();
+    }
+  };
+
   /**
    * Initializes the core behavior of a handler. A handler is ordinarily stacked
    * onto another, except for the lowest down. Then a handler has a (supposed)
@@ -43,11 +121,12 @@ public abstract class Handler {
    *          {@code under}'s map of stacked handlers
    * @param queueing
    *          {@code true} if queuing of incoming messages is enabled;
-   *          {@code false} in not.
+   *          {@code false} in not. Queued messages are processed as specified
+   *          by {@link #EXECUTION}.
    */
   public Handler(Handler under, int refNum, boolean queueing) {
     this.refNumber = refNum;
-    this.upsideHandlers = new ConcurrentHashMap<Integer, Handler>();
+    this.upsideHandlers = new HandlerRegistry();
     this.downside = under;
     if (this.downside != null)
       this.downside.bind(this);
@@ -73,7 +152,6 @@ public abstract class Handler {
    *          called for passing messages upwards
    * @see handle
    */
-  @SuppressWarnings("boxing")
   protected void bind(Handler above) {
     this.upsideHandlers.put(above.refNumber, above);
   }
@@ -93,15 +171,15 @@ public abstract class Handler {
 
   /**
    * Removes the specified handler from the map of stacked handlers, so it may
-   * no longer receive incoming messages.
+   * no longer receive incoming messages. This is done by {@link #close}, so
+   * that the map of a long-running handler does not keep every closed one.
    * 
    * @param above
    *          the {@code Handler} to remove from the current one's map
    * @see handle
    */
-  @SuppressWarnings({ "boxing", "unused" })
   private final void unbind(Handler above) {
-    this.upsideHandlers.remove(above.refNumber);
+    this.upsideHandlers.remove(above.refNumber, above);
   }
 
   /**
@@ -115,17 +193,26 @@ public abstract class Handler {
     if (this.queue != null)
       throw new IllegalStateException(
           this.getName() + "'s processor is already started");
-    this.queue = new LinkedBlockingQueue<Message>(QUEUE_SIZE);
-    this.processor = new Thread(new Runnable() {
+    this.queue = new RingBuffer<Message>(QUEUE_CAPACITY);
+    this.overflow = OVERFLOW;
+    if (EXECUTION == Execution.EVENT_LOOP) {
+      this.loop = EventLoopGroup.SHARED.next();
+      return;
+    }
+    this.processor = Threads.newThread(new Runnable() {
       @SuppressWarnings("synthetic-access")
       @Override
       public void run() {
         while (!Thread.currentThread().isInterrupted()) {
-          Message message = null;
-          try {
-            message = Handler.this.queue.take();
-          } catch (@SuppressWarnings("unused") InterruptedException e) {
-            Thread.currentThread().interrupt();
+          Message message = Handler.this.queue.poll();
+          if (message == null) {
+            // announce the parking, then check again, so that a message
+            // queued meanwhile is either seen here or unparks this thread
+            Handler.this.idle = true;
+            message = Handler.this.queue.poll();
+            if (message == null)
+              LockSupport.park(Handler.this);
+            Handler.this.idle = false;
           }
           if (message != null)
             handle(message);
@@ -137,6 +224,33 @@ public abstract class Handler {
     this.processor.start();
   }
 
+  /**
+   * Submits a drain of the queue to the loop, unless one is already pending.
+   * As a drain is submitted at most once at a time, the messages of this
+   * handler are never handled concurrently.
+   */
+  private final void schedule() {
+    if (this.scheduled.compareAndSet(false, true))
+      this.loop.execute(this.drain);
+  }
+
+  /**
+   * Handles a batch of queued messages, then gives the other handlers of the
+   * loop their turn.
+   */
+  private final void drain() {
+    for (int i = 0; i < BATCH_SIZE && this.running; i++) {
+      Message message = this.queue.poll();
+      if (message == null)
+        break;
+      handle(message);
+    }
+    this.scheduled.set(false);
+    // a message may have been queued after the last poll()
+    if (this.running && !this.queue.isEmpty())
+      schedule();
+  }
+
   /**
    * Handles one message now. By default, this method simply dispatch the
    * message upwards to every handler stacked on top of the current. So it does
@@ -160,18 +274,62 @@ public abstract class Handler {
    * 
    * @param message
    *          the incoming {@code Message} passed to this handler
+   * @return {@code false} if the message has been refused because the queue is
+   *         full and the overflow policy is to SIGNAL it, {@code true}
+   *         otherwise, even if the message has been dropped
    * 
    * @see #Handler
    */
-  protected final void receive(Message message) {
-    if (this.queue == null)
+  protected final boolean receive(Message message) {
+    if (this.queue == null) {
       this.handle(message);
-    else
-      try {
-        this.queue.add(message);
-      } catch (IllegalArgumentException e) {
-        System.err.println(this.getName() + ": " + e);
+      return true;
+    }
+    while (!this.queue.offer(message)) {
+      switch (this.overflow) {
+      case BLOCK:
+        if (this.running && !EventLoopGroup.inLoop() && !TimingWheel.inWheel()) {
+          LockSupport.parkNanos(BLOCK_PAUSE);
+          continue;
+        }
+        return false;
+      case DROP_NEWEST:
+        this.drops.incrementAndGet();
+        return true;
+      case DROP_OLDEST:
+        if (this.queue.poll() != null)
+          this.drops.incrementAndGet();
+        continue;
+      default:
+        return false;
       }
+    }
+    if (this.loop != null)
+      schedule();
+    else if (this.idle)
+      LockSupport.unpark(this.processor);
+    return true;
+  }
+
+  /**
+   * Tells how many messages this handler can take at once, so that the
+   * handler below lets its remote send no more. Subclasses holding received
+   * data elsewhere may lower it after their own room.
+   * 
+   * @return the room left in the queue, or {@code Integer.MAX_VALUE} without
+   *         queue
+   */
+  public int getFreeCapacity() {
+    RingBuffer<Message> q = this.queue;
+    return q == null ? Integer.MAX_VALUE : Math.max(0, q.capacity() - q.size());
+  }
+
+  /**
+   * @return the number of incoming messages discarded by this handler because
+   *         its queue was full
+   */
+  public long getDropCount() {
+    return this.drops.get();
   }
 
   /**
@@ -198,8 +356,42 @@ public abstract class Handler {
   protected abstract void send(String payload);
 
   /**
-   * A facility to prohibit the use of any of the two {@link #send(String)} and
-   * {@link #send(String,String)} methods. Simply insert a call to
+   * Sends raw bytes to the specified destination address, through this
+   * handler. By default, a handler does not accept sending bytes, one has to
+   * override this method to change this behavior.
+   * 
+   * @param data
+   *          the bytes to be sent, from position to limit
+   * @param destinationAddress
+   *          a {@code String} identifying the destination
+   * @throws UnsupportedOperationException
+   *           by default
+   * @see #send(String,String)
+   */
+  protected void send(ByteBuffer data, String destinationAddress) {
+    no_send();
+  }
+
+  /**
+   * Sends raw bytes downwards through this handler, when an implicit
+   * destination address has been defined. By default, a handler does not
+   * accept sending bytes, one has to override this method to change this
+   * behavior.
+   * 
+   * @param data
+   *          the bytes to be sent, from position to limit
+   * @throws UnsupportedOperationException
+   *           by default
+   * @see #send(String)
+   */
+  protected void send(ByteBuffer data) {
+    no_send();
+  }
+
+  /**
+   * A facility to prohibit the use of any of the {@link #send(String)},
+   * {@link #send(String,String)}, {@link #send(ByteBuffer)} and
+   * {@link #send(ByteBuffer,String)} methods. Simply insert a call to
    * {@code no_send()} in the overriding {@link send send}.
    * 
    * @throws UnsupportedOperationException
@@ -211,17 +403,20 @@ public abstract class Handler {
   }
 
   /**
-   * Closes this handler, stopping the queueing process and closing in turn
-   * every handler stacked above. An overriding method should make the best
-   * effort to release any additional ressources and then call
-   * {@code super.close()}.
+   * Closes this handler, stopping the queueing process, closing in turn every
+   * handler stacked above and unbinding from the handler below. An overriding
+   * method should make the best effort to release any additional ressources
+   * and then call {@code super.close()}.
    */
   protected void close() {
+    this.running = false;
     if (this.processor != null)
       this.processor.interrupt();
     for (Handler above : this.upsideHandlers.values())
       above.close();
     this.upsideHandlers.clear();
+    if (this.downside != null)
+      this.downside.unbind(this);
   }
 
 }
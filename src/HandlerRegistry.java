@@ -0,0 +1,200 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * This class defines the map from reference numbers to handlers behind
+ * {@link Handler#bind}, optimized for the per-packet lookups of a dispatcher.
+ * The keys are {@code int}s, never boxed, and the entries are kept in an open
+ * addressing hash table with linear probing.
+ *
+ * Lookups take no lock: an entry holds both its key and its handler and is
+ * published atomically, and a removed entry leaves a tombstone, so a reader
+ * never sees a half-updated slot. Writers are serialized, and rebuild the
+ * table when tombstones and entries fill it.
+ */
+public class HandlerRegistry {
+
+  /** An immutable association, written to a slot in one go. */
+  private static final class Entry {
+    final int key;
+    final Handler handler;
+
+    Entry(int _key, Handler _handler) {
+      this.key = _key;
+      this.handler = _handler;
+    }
+  }
+
+  /** Marks a slot whose entry has been removed. */
+  private static final Entry TOMBSTONE = new Entry(0, null);
+
+  private static final Handler[] NONE = new Handler[0];
+
+  private static final int INITIAL_CAPACITY = 8;
+
+  /** The current table, replaced as a whole when rebuilt. */
+  private volatile AtomicReferenceArray<Entry> table = new AtomicReferenceArray<Entry>(
+      INITIAL_CAPACITY);
+
+  /** The number of entries, guarded by {@code this} for writing. */
+  private volatile int size = 0;
+
+  /** The number of tombstones, guarded by {@code this}. */
+  private int tombstones = 0;
+
+  /** The handlers, for iterating, or {@code null} until rebuilt. */
+  private volatile Handler[] snapshot = NONE;
+
+  /** Spreads the bits of a key, consecutive keys being common. */
+  private static int hash(int key) {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * @param key
+   *          a reference number
+   * @return the handler registered with it, or {@code null}
+   */
+  public Handler get(int key) {
+    AtomicReferenceArray<Entry> t = this.table;
+    int mask = t.length() - 1;
+    for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+      Entry entry = t.get(i);
+      if (entry == null)
+        return null;
+      if (entry != TOMBSTONE && entry.key == key)
+        return entry.handler;
+    }
+  }
+
+  /**
+   * Registers a handler, replacing any other one with the same key.
+   *
+   * @param key
+   *          the reference number of the handler
+   * @param handler
+   *          the handler
+   * @return the previous handler registered with this key, or {@code null}
+   */
+  public synchronized Handler put(int key, Handler handler) {
+    Handler previous = remove(key);
+    if ((this.size + this.tombstones + 1) * 4 > this.table.length() * 3)
+      rebuild(Math.max(INITIAL_CAPACITY,
+          Integer.highestOneBit((this.size + 1) * 2) << 1));
+    AtomicReferenceArray<Entry> t = this.table;
+    int mask = t.length() - 1;
+    int i = hash(key) & mask;
+    while (t.get(i) != null && t.get(i) != TOMBSTONE)
+      i = (i + 1) & mask;
+    if (t.get(i) == TOMBSTONE)
+      this.tombstones--;
+    t.set(i, new Entry(key, handler));
+    this.size++;
+    this.snapshot = null;
+    return previous;
+  }
+
+  /**
+   * Unregisters the handler with the specified key.
+   *
+   * @param key
+   *          a reference number
+   * @return the removed handler, or {@code null}
+   */
+  public synchronized Handler remove(int key) {
+    return remove(key, null);
+  }
+
+  /**
+   * Unregisters the specified handler, if it is still registered with the
+   * specified key.
+   *
+   * @param key
+   *          its reference number
+   * @param handler
+   *          the handler, or {@code null} for any
+   * @return the removed handler, or {@code null}
+   */
+  public synchronized Handler remove(int key, Handler handler) {
+    AtomicReferenceArray<Entry> t = this.table;
+    int mask = t.length() - 1;
+    for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+      Entry entry = t.get(i);
+      if (entry == null)
+        return null;
+      if (entry != TOMBSTONE && entry.key == key) {
+        if (handler != null && entry.handler != handler)
+          return null;
+        t.set(i, TOMBSTONE);
+        this.tombstones++;
+        this.size--;
+        this.snapshot = null;
+        return entry.handler;
+      }
+    }
+  }
+
+  /** Unregisters every handler. */
+  public synchronized void clear() {
+    this.table = new AtomicReferenceArray<Entry>(INITIAL_CAPACITY);
+    this.size = 0;
+    this.tombstones = 0;
+    this.snapshot = NONE;
+  }
+
+  /** Replaces the table by a new one without tombstones. */
+  private void rebuild(int capacity) {
+    AtomicReferenceArray<Entry> old = this.table;
+    AtomicReferenceArray<Entry> t = new AtomicReferenceArray<Entry>(capacity);
+    int mask = capacity - 1;
+    for (int j = 0; j < old.length(); j++) {
+      Entry entry = old.get(j);
+      if (entry == null || entry == TOMBSTONE)
+        continue;
+      int i = hash(entry.key) & mask;
+      while (t.get(i) != null)
+        i = (i + 1) & mask;
+      t.set(i, entry);
+    }
+    this.tombstones = 0;
+    this.table = t;
+  }
+
+  /** @return the number of registered handlers */
+  public int size() {
+    return this.size;
+  }
+
+  /** @return {@code true} if no handler is registered */
+  public boolean isEmpty() {
+    return this.size == 0;
+  }
+
+  /**
+   * Returns the registered handlers, as an array which must not be modified.
+   * The array is shared by the callers until the next change, so iterating
+   * over it costs no allocation and is not disturbed by concurrent changes.
+   *
+   * @return the handlers registered at the time of the call
+   */
+  public Handler[] values() {
+    Handler[] handlers = this.snapshot;
+    if (handlers != null)
+      return handlers;
+    synchronized (this) {
+      if (this.snapshot == null) {
+        AtomicReferenceArray<Entry> t = this.table;
+        handlers = new Handler[this.size];
+        int n = 0;
+        for (int i = 0; i < t.length(); i++) {
+          Entry entry = t.get(i);
+          if (entry != null && entry != TOMBSTONE)
+            handlers[n++] = entry.handler;
+        }
+        this.snapshot = handlers;
+      }
+      return this.snapshot;
+    }
+  }
+
+}
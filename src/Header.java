@@ -0,0 +1,646 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ *       Header
+ *
+ *       The header of a packet of the connected protocol, with the single
+ *       encoder/decoder shared by ConnectedHandler and DispatchingHandler.
+ *
+ *       Two wire formats are understood, and told apart by their first byte:
+ *
+ *       TEXT:    <senderID>;<destinationID>;<PN>;<payload>
+ *                the original format, HELLO and ACK being special payloads,
+ *                a cookie being written in decimal after --HELLO-- or
+ *                --COOKIE--, a retry-after delay after --BUSY--, and a
+ *                receive window after --ACK--, followed by the selective
+ *                ACK blocks, each one as " <start>-<end>"
+ *
+ *                --WINDOW-- is a HELLO with WINDOW, which offers ACKs
+ *                advertising a window: the original implementation drops
+ *                it, and only answers the plain HELLO sent along
+ *
+ *                a data packet with ACK is written as
+ *                --DATA--<packet acked> <window> <blocks>;<payload>
+ *                so that its payload is never taken for a marker: once
+ *                windowed, a sender writes so every payload starting with
+ *                "--"; a payload like a marker, sent to or by the original
+ *                implementation, is still ambiguous, and taken for one
+ *
+ *       BINARY:  version      1 byte, 0x80 | VERSION
+ *                flags        1 byte, HELLO / ACK / CLOSE / COOKIE / BUSY / WINDOW / DATA
+ *                senderID     4 bytes
+ *                destinationID 4 bytes
+ *                PN           4 bytes
+ *                length       2 bytes, length of the payload which follows
+ *
+ *                a cookie is the 4 bytes payload of a COOKIE packet,
+ *                a retry-after delay the one of a BUSY packet, and a
+ *                receive window the one of an ACK with WINDOW, which may go
+ *                on with the number of selective ACK blocks, 1 byte, and
+ *                the blocks, 4 bytes start and 4 bytes end each
+ *
+ *                a DATA packet with ACK carries an ACK for the reverse
+ *                direction in front of its payload: the packet acked,
+ *                4 bytes, then the window, the number of blocks and the
+ *                blocks as above
+ *
+ *                a HELLO with WINDOW has no payload
+ *
+ *       An ACK is cumulative: it acks every packet up to its PN, as the
+ *       original implementation acks the packets in order only, and with
+ *       WINDOW the packets of its blocks, from start included to end excluded.
+ *
+ *       A Header instance is a reusable holder for the decoded fields, so that
+ *       parsing a packet neither compiles a regex nor creates any String.
+ */
+public class Header
+{
+    public enum Format
+    {
+        TEXT, BINARY
+    }
+
+    /** the markers of the TEXT format, don't change them */
+    private static final String HELLO = "--HELLO--";
+    private static final String ACK = "--ACK--";
+    private static final byte[] HELLO_BYTES = HELLO.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ACK_BYTES = ACK.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] COOKIE_BYTES = "--COOKIE--".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] BUSY_BYTES = "--BUSY--".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] WINDOW_BYTES = "--WINDOW--".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] DATA_BYTES = "--DATA--".getBytes(StandardCharsets.UTF_8);
+
+    /** version of the BINARY format */
+    public static final int VERSION = 1;
+    private static final int VERSION_MARK = 0x80;
+    public static final int BINARY_SIZE = 16;
+
+    /** flags */
+    public static final int FLAG_HELLO = 1;
+    public static final int FLAG_ACK = 2;
+    public static final int FLAG_CLOSE = 4; // reserved for a connection level close, not sent yet
+    public static final int FLAG_COOKIE = 8; // alone: a server's challenge, with HELLO: its echo
+    public static final int FLAG_BUSY = 16; // a server refusing a HELLO for a while
+    public static final int FLAG_WINDOW = 32; // with ACK: the receive window of its sender, and selective ACK blocks, with HELLO: their offer
+    public static final int FLAG_DATA = 64; // with ACK and WINDOW: a data packet carrying an ACK
+
+    /** the largest number of selective ACK blocks in an ACK */
+    public static final int MAX_SACK_BLOCKS = 4;
+
+    public Format format;
+    public int flags;
+    public int senderID;
+    public int destinationID;
+    public int PN;
+    /** position and length of the payload inside the decoded buffer */
+    public int payloadOffset;
+    public int payloadLength;
+    /** valid if FLAG_COOKIE is set */
+    public int cookie;
+    /** valid if FLAG_BUSY is set, in milliseconds */
+    public int retryAfter;
+    /** valid if FLAG_WINDOW is set, the number following the last packet accepted */
+    public int window;
+    /** valid if FLAG_ACK is set, the packet acked: the PN, unless FLAG_DATA is set */
+    public int ackPN;
+    /** valid if FLAG_WINDOW is set, the selective ACK blocks, as start and end pairs */
+    public final int[] sack = new int[2 * MAX_SACK_BLOCKS];
+    public int sackCount;
+
+    public boolean isHello()
+    {
+        return (this.flags & FLAG_HELLO) != 0;
+    }
+
+    public boolean isAck()
+    {
+        return (this.flags & FLAG_ACK) != 0;
+    }
+
+    public boolean hasCookie()
+    {
+        return (this.flags & FLAG_COOKIE) != 0;
+    }
+
+    public boolean isBusy()
+    {
+        return (this.flags & FLAG_BUSY) != 0;
+    }
+
+    public boolean hasWindow()
+    {
+        return (this.flags & FLAG_WINDOW) != 0;
+    }
+
+    public boolean hasData()
+    {
+        return (this.flags & FLAG_DATA) != 0;
+    }
+
+    /**
+     * @param data a received packet, from its position to its limit
+     * @return {@code true} if the packet starts with a BINARY header
+     */
+    public static boolean isBinary(ByteBuffer data)
+    {
+        return data.remaining() > 0 && (data.get(data.position()) & VERSION_MARK) != 0;
+    }
+
+    /**
+     * Decodes the header of a message, preferably from its raw bytes.
+     *
+     * @param message the received message
+     * @return {@code true} if a valid header has been decoded
+     */
+    public boolean decode(Message message)
+    {
+        return decode(message.bytes());
+    }
+
+    /**
+     * Decodes the header of a packet into this holder. The position of the
+     * buffer is left unchanged.
+     *
+     * @param data a packet, from its position to its limit
+     * @return {@code true} if a valid header has been decoded
+     */
+    public boolean decode(ByteBuffer data)
+    {
+        if (isBinary(data))
+            return decode_binary(data);
+        return decode_text(data);
+    }
+
+    private boolean decode_binary(ByteBuffer data)
+    {
+        int start = data.position();
+        if (data.remaining() < BINARY_SIZE || (data.get(start) & ~VERSION_MARK & 0xFF) != VERSION)
+            return false;
+        this.format = Format.BINARY;
+        this.flags = data.get(start + 1);
+        this.senderID = data.getInt(start + 2);
+        this.destinationID = data.getInt(start + 6);
+        this.PN = data.getInt(start + 10);
+        this.payloadLength = data.getShort(start + 14) & 0xFFFF;
+        this.payloadOffset = start + BINARY_SIZE;
+        if (this.payloadOffset + this.payloadLength > data.limit())
+            return false;
+        this.ackPN = this.PN;
+        this.sackCount = 0;
+        if (hasWindow() && !isHello())
+            return decode_binary_ack(data);
+        if (hasCookie() || isBusy())
+        {
+            if (this.payloadLength < 4)
+                return false;
+            if (isBusy())
+                this.retryAfter = data.getInt(this.payloadOffset);
+            else
+                this.cookie = data.getInt(this.payloadOffset);
+        }
+        return true;
+    }
+
+    /** decodes the fields of an ACK with WINDOW, the payload being what follows them */
+    private boolean decode_binary_ack(ByteBuffer data)
+    {
+        int at = this.payloadOffset;
+        int end = at + this.payloadLength;
+        if (hasData())
+        {
+            if (end - at < 9)
+                return false;
+            this.ackPN = data.getInt(at);
+            at += 4;
+        }
+        if (end - at < 4)
+            return false;
+        this.window = data.getInt(at);
+        at += 4;
+        if (at < end)
+        {
+            int count = data.get(at++) & 0xFF;
+            if (count > MAX_SACK_BLOCKS || end - at < 8 * count)
+                return false;
+            for (int i = 0; i < 2 * count; i++, at += 4)
+                this.sack[i] = data.getInt(at);
+            this.sackCount = count;
+        }
+        this.payloadOffset = at;
+        this.payloadLength = end - at;
+        return true;
+    }
+
+    private boolean decode_text(ByteBuffer data)
+    {
+        int end = data.limit();
+        int first = index_of(data, data.position(), end);
+        if (first < 0)
+            return false;
+        int second = index_of(data, first + 1, end);
+        if (second < 0)
+            return false;
+        int third = index_of(data, second + 1, end);
+        if (third < 0)
+            return false;
+        try
+        {
+            this.senderID = parse_int(data, data.position(), first);
+            this.destinationID = parse_int(data, first + 1, second);
+            this.PN = parse_int(data, second + 1, third);
+        } catch (NumberFormatException e)
+        {
+            return false;
+        }
+        this.format = Format.TEXT;
+        this.payloadOffset = third + 1;
+        this.payloadLength = end - this.payloadOffset;
+        this.flags = 0;
+        this.ackPN = this.PN;
+        this.sackCount = 0;
+        if (payload_equals(data, HELLO_BYTES))
+            this.flags = FLAG_HELLO;
+        else if (payload_equals(data, ACK_BYTES))
+            this.flags = FLAG_ACK;
+        else if (payload_equals(data, WINDOW_BYTES))
+            this.flags = FLAG_HELLO | FLAG_WINDOW;
+        else if (payload_starts_with(data, ACK_BYTES))
+            return decode_text_ack(data, ACK_BYTES.length, false);
+        else if (payload_starts_with(data, DATA_BYTES))
+            return decode_text_ack(data, DATA_BYTES.length, true);
+        else if (payload_starts_with(data, HELLO_BYTES))
+            return decode_text_argument(data, FLAG_HELLO | FLAG_COOKIE, HELLO_BYTES.length);
+        else if (payload_starts_with(data, COOKIE_BYTES))
+            return decode_text_argument(data, FLAG_COOKIE, COOKIE_BYTES.length);
+        else if (payload_starts_with(data, BUSY_BYTES))
+            return decode_text_argument(data, FLAG_BUSY, BUSY_BYTES.length);
+        return true;
+    }
+
+    /**
+     * decodes the window and the selective ACK blocks written after the marker
+     * of an ACK, or of a data packet, which starts with the packet acked and
+     * whose payload follows the ';' ending them
+     */
+    private boolean decode_text_ack(ByteBuffer data, int marker, boolean withData)
+    {
+        int end = this.payloadOffset + this.payloadLength;
+        try
+        {
+            int at = this.payloadOffset + marker;
+            int stop = withData ? find(data, at, end, ';') : end;
+            if (stop == end && withData)
+                throw new NumberFormatException();
+            int acked = this.PN;
+            int next = find(data, at, stop, ' ');
+            if (withData)
+            {
+                acked = parse_int(data, at, next);
+                at = next + 1;
+                next = find(data, at, stop, ' ');
+            }
+            int value = parse_int(data, at, next);
+            int count = 0;
+            for (; next < stop; count++)
+            {
+                at = next + 1;
+                next = find(data, at, stop, ' ');
+                int dash = find(data, at + 1, next, '-');
+                if (count == MAX_SACK_BLOCKS)
+                    throw new NumberFormatException();
+                this.sack[2 * count] = parse_int(data, at, dash);
+                this.sack[2 * count + 1] = parse_int(data, dash + 1, next);
+            }
+            this.ackPN = acked;
+            this.window = value;
+            this.sackCount = count;
+            this.flags = FLAG_ACK | FLAG_WINDOW | (withData ? FLAG_DATA : 0);
+            if (withData)
+            {
+                this.payloadOffset = stop + 1;
+                this.payloadLength = end - this.payloadOffset;
+            }
+        } catch (NumberFormatException e)
+        {
+            // an ordinary payload, which happens to start like a marker
+        }
+        return true;
+    }
+
+    /** decodes the number written after the marker of a cookie or BUSY packet */
+    private boolean decode_text_argument(ByteBuffer data, int flags, int marker)
+    {
+        try
+        {
+            int value = parse_int(data, this.payloadOffset + marker, this.payloadOffset + this.payloadLength);
+            if ((flags & FLAG_BUSY) != 0)
+                this.retryAfter = value;
+            else
+                this.cookie = value;
+            this.flags = flags;
+        } catch (NumberFormatException e)
+        {
+            // an ordinary payload, which happens to start like a marker
+        }
+        return true;
+    }
+
+    /** @return the index of the ';' closing a non empty field starting at from, or -1 */
+    private static int index_of(ByteBuffer data, int from, int end)
+    {
+        for (int i = from + 1; i < end; i++)
+            if (data.get(i) == ';')
+                return i;
+        return -1;
+    }
+
+    /** @return the index of the first c between from and end, or end */
+    private static int find(ByteBuffer data, int from, int end, char c)
+    {
+        for (int i = from; i < end; i++)
+            if (data.get(i) == c)
+                return i;
+        return end;
+    }
+
+    private static int parse_int(ByteBuffer data, int from, int to)
+    {
+        if (from >= to)
+            throw new NumberFormatException();
+        boolean negative = data.get(from) == '-';
+        int i = negative ? from + 1 : from;
+        if (i == to)
+            throw new NumberFormatException();
+        long value = 0;
+        for (; i < to; i++)
+        {
+            int digit = data.get(i) - '0';
+            if (digit < 0 || digit > 9)
+                throw new NumberFormatException();
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1)
+                throw new NumberFormatException();
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE)
+            throw new NumberFormatException();
+        return (int) value;
+    }
+
+    private boolean payload_equals(ByteBuffer data, byte[] expected)
+    {
+        if (this.payloadLength != expected.length)
+            return false;
+        for (int i = 0; i < expected.length; i++)
+            if (data.get(this.payloadOffset + i) != expected[i])
+                return false;
+        return true;
+    }
+
+    private boolean payload_starts_with(ByteBuffer data, byte[] expected)
+    {
+        if (this.payloadLength <= expected.length)
+            return false;
+        for (int i = 0; i < expected.length; i++)
+            if (data.get(this.payloadOffset + i) != expected[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * @param payload the payload of a data packet, from position to limit
+     * @return {@code true} if, sent as is in the TEXT format, it could be
+     *         taken for a marker, as every one of them starts with "--"
+     */
+    public static boolean looksLikeMarker(ByteBuffer payload)
+    {
+        int at = payload.position();
+        return payload.remaining() >= 2 && payload.get(at) == '-' && payload.get(at + 1) == '-';
+    }
+
+    /**
+     * @param data the buffer this header has been decoded from
+     * @return a view on the payload, sharing the bytes of the buffer
+     */
+    public ByteBuffer payload(ByteBuffer data)
+    {
+        ByteBuffer payload = data.duplicate();
+        payload.limit(this.payloadOffset + this.payloadLength);
+        payload.position(this.payloadOffset);
+        return payload.slice();
+    }
+
+    /**
+     * Encodes a packet carrying a cookie, either a COOKIE challenge or the
+     * HELLO echoing it.
+     *
+     * @param flags FLAG_COOKIE, possibly with FLAG_HELLO
+     */
+    public static ByteBuffer encodeCookie(Format format, int flags, int senderID, int destinationID, int cookie)
+    {
+        ByteBuffer payload = ByteBuffer.allocate(4);
+        payload.putInt(0, cookie);
+        return encode(format, flags | FLAG_COOKIE, senderID, destinationID, 0, payload);
+    }
+
+    /**
+     * Encodes a BUSY packet, telling a client not to send its HELLO again
+     * before the specified delay.
+     *
+     * @param retryAfter the delay, in milliseconds
+     */
+    public static ByteBuffer encodeBusy(Format format, int senderID, int destinationID, int retryAfter)
+    {
+        ByteBuffer payload = ByteBuffer.allocate(4);
+        payload.putInt(0, retryAfter);
+        return encode(format, FLAG_BUSY, senderID, destinationID, 0, payload);
+    }
+
+    /**
+     * Encodes a cumulative ACK advertising the receive window of its sender.
+     *
+     * @param PN        the last packet received in order
+     * @param window    the number following the last packet its sender accepts
+     * @param sack      the selective ACK blocks, as start and end pairs
+     * @param sackCount the number of blocks
+     */
+    public static ByteBuffer encodeAck(Format format, int senderID, int destinationID, int PN, int window,
+                                       int[] sack, int sackCount)
+    {
+        ByteBuffer payload = ByteBuffer.allocate(ack_size(sackCount));
+        put_ack(payload, window, sack, sackCount);
+        payload.flip();
+        return encode(format, FLAG_ACK | FLAG_WINDOW, senderID, destinationID, PN, payload);
+    }
+
+    /**
+     * Encodes a HELLO offering ACKs which advertise a window, to be sent along
+     * the plain HELLO, which the original implementation answers alone.
+     */
+    public static ByteBuffer encodeOffer(Format format, int senderID)
+    {
+        return encode(format, FLAG_HELLO | FLAG_WINDOW, senderID, -1, 0, ByteBuffer.allocate(0));
+    }
+
+    /**
+     * Encodes a data packet carrying a cumulative ACK for the reverse
+     * direction, for a remote which offers windowed ACKs only.
+     *
+     * @param PN    the number of the data packet
+     * @param ackPN the last packet received in order
+     * @see #encodeAck
+     */
+    public static ByteBuffer encodeData(Format format, int senderID, int destinationID, int PN, int ackPN, int window,
+                                        int[] sack, int sackCount, ByteBuffer payload)
+    {
+        if (format == Format.TEXT)
+            return encode_text_data(senderID, destinationID, PN, ackPN, window, sack, sackCount, payload);
+        int length = 4 + ack_size(sackCount) + (sackCount == 0 ? 1 : 0) + payload.remaining();
+        if (length > 0xFFFF)
+            throw new IllegalArgumentException("payload too long: " + payload.remaining());
+        ByteBuffer out = ByteBuffer.allocate(BINARY_SIZE + length);
+        put_binary(out, FLAG_ACK | FLAG_WINDOW | FLAG_DATA, senderID, destinationID, PN, length);
+        out.putInt(ackPN);
+        put_ack(out, window, sack, sackCount);
+        if (sackCount == 0)
+            out.put((byte) 0); // the data follows
+        out.put(payload.duplicate());
+        out.flip();
+        return out;
+    }
+
+    private static ByteBuffer encode_text_data(int senderID, int destinationID, int PN, int ackPN, int window,
+                                               int[] sack, int sackCount, ByteBuffer payload)
+    {
+        ByteBuffer text = ByteBuffer.allocate(DATA_BYTES.length + 24 + 24 * sackCount + payload.remaining());
+        text.put(DATA_BYTES);
+        put_int(text, ackPN);
+        text.put((byte) ' ');
+        put_int(text, window);
+        for (int i = 0; i < sackCount; i++)
+        {
+            text.put((byte) ' ');
+            put_int(text, sack[2 * i]);
+            text.put((byte) '-');
+            put_int(text, sack[2 * i + 1]);
+        }
+        text.put((byte) ';');
+        text.put(payload.duplicate());
+        text.flip();
+        return encode(Format.TEXT, 0, senderID, destinationID, PN, text);
+    }
+
+    /** @return the size of the window and of the blocks of an ACK */
+    private static int ack_size(int sackCount)
+    {
+        return sackCount == 0 ? 4 : 5 + 8 * sackCount;
+    }
+
+    private static void put_ack(ByteBuffer out, int window, int[] sack, int sackCount)
+    {
+        out.putInt(window);
+        if (sackCount == 0)
+            return;
+        out.put((byte) sackCount);
+        for (int i = 0; i < 2 * sackCount; i++)
+            out.putInt(sack[i]);
+    }
+
+    /**
+     * Encodes a packet. In the TEXT format, HELLO and ACK are written as their
+     * special payload, which replaces the given one, as is a HELLO with WINDOW;
+     * the 4 bytes payload of a packet with a cookie, of a BUSY packet or of an
+     * ACK with a window is written in decimal after its marker, followed by
+     * the blocks of the ACK.
+     *
+     * @param payload the payload, from position to limit, which is left unchanged
+     * @return a buffer holding the packet, ready to be read
+     */
+    public static ByteBuffer encode(Format format, int flags, int senderID, int destinationID, int PN, ByteBuffer payload)
+    {
+        if (format == Format.BINARY)
+        {
+            if (payload.remaining() > 0xFFFF)
+                throw new IllegalArgumentException("payload too long: " + payload.remaining());
+            ByteBuffer out = ByteBuffer.allocate(BINARY_SIZE + payload.remaining());
+            put_binary(out, flags, senderID, destinationID, PN, payload.remaining());
+            out.put(payload.duplicate());
+            out.flip();
+            return out;
+        }
+        if ((flags & FLAG_DATA) != 0)
+            throw new IllegalArgumentException("no ACK in a TEXT data packet");
+        if ((flags & (FLAG_HELLO | FLAG_WINDOW)) == (FLAG_HELLO | FLAG_WINDOW))
+            payload = ByteBuffer.wrap(WINDOW_BYTES);
+        else if ((flags & (FLAG_COOKIE | FLAG_BUSY | FLAG_WINDOW)) != 0)
+        {
+            int at = payload.position();
+            int blocks = (flags & FLAG_WINDOW) != 0 && payload.remaining() > 4 ? payload.get(at + 4) & 0xFF : 0;
+            ByteBuffer text = ByteBuffer.allocate(COOKIE_BYTES.length + 11 + 24 * blocks);
+            if ((flags & FLAG_BUSY) != 0)
+                text.put(BUSY_BYTES);
+            else if ((flags & FLAG_WINDOW) != 0)
+                text.put(ACK_BYTES);
+            else
+                text.put((flags & FLAG_HELLO) != 0 ? HELLO_BYTES : COOKIE_BYTES);
+            put_int(text, payload.getInt(at));
+            for (int i = 0; i < blocks; i++)
+            {
+                text.put((byte) ' ');
+                put_int(text, payload.getInt(at + 5 + 8 * i));
+                text.put((byte) '-');
+                put_int(text, payload.getInt(at + 9 + 8 * i));
+            }
+            text.flip();
+            payload = text;
+        }
+        else if ((flags & FLAG_HELLO) != 0)
+            payload = ByteBuffer.wrap(HELLO_BYTES);
+        else if ((flags & FLAG_ACK) != 0)
+            payload = ByteBuffer.wrap(ACK_BYTES);
+        // me; you; number; payload
+        ByteBuffer out = ByteBuffer.allocate(3 * 12 + payload.remaining());
+        put_int(out, senderID);
+        out.put((byte) ';');
+        put_int(out, destinationID);
+        out.put((byte) ';');
+        put_int(out, PN);
+        out.put((byte) ';');
+        out.put(payload.duplicate());
+        out.flip();
+        return out;
+    }
+
+    private static void put_binary(ByteBuffer out, int flags, int senderID, int destinationID, int PN, int length)
+    {
+        out.put((byte) (VERSION_MARK | VERSION));
+        out.put((byte) flags);
+        out.putInt(senderID);
+        out.putInt(destinationID);
+        out.putInt(PN);
+        out.putShort((short) length);
+    }
+
+    private static void put_int(ByteBuffer out, int value)
+    {
+        long v = value;
+        if (v < 0)
+        {
+            out.put((byte) '-');
+            v = -v;
+        }
+        long scale = 1;
+        while (scale * 10 <= v)
+            scale *= 10;
+        for (; scale > 0; scale /= 10)
+            out.put((byte) ('0' + (v / scale) % 10));
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.format + " SID: " + this.senderID + " DID: " + this.destinationID + " PN: " + this.PN
+                + " FLAGS: " + this.flags + " LEN: " + this.payloadLength;
+    }
+}
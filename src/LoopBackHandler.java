@@ -1,3 +1,5 @@
+import java.nio.ByteBuffer;
+
 /**
  * This class defines a loopback implementation of {@link Handler}, such as
  * every sent message is forwarded back to handlers stacked on.
@@ -17,6 +19,14 @@ public class LoopBackHandler extends Handler {
     this.receive(new Message(payload, "loopback("+destinationAddress+')'));
   }
 
+  /**
+   * Forwards the given bytes back to the entry of this handler.
+   */
+  @Override
+  public void send(ByteBuffer data, String destinationAddress) {
+    this.receive(new Message(data, "loopback("+destinationAddress+')'));
+  }
+
   /**
    * Forwards the given payload back to the entry of this handler.
    */
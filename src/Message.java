@@ -1,7 +1,18 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 /** A basic definition for a received message. */
 class Message {
-  /** The payload of this message. */
+  /**
+   * The payload of this message as text, or {@code null} when it is only
+   * carried as bytes (see {@link #data} and {@link #text}).
+   */
   public final String payload;
+  /**
+   * The payload of this message as bytes, from position to limit, or
+   * {@code null} when it is only carried as text.
+   */
+  public final ByteBuffer data;
   /** The source address of this message, formatted as a {@code String}. */
   public final String sourceAddress;
 
@@ -14,16 +25,62 @@ class Message {
    *          the source address of this message, formatted as a {@code String}
    */
   public Message(String _payload, String _sourceAddress) {
+    this(_payload, null, _sourceAddress);
+  }
+
+  /**
+   * Initializes a new message whose payload is carried as bytes. The buffer is
+   * not copied, so it must not be modified afterwards.
+   * 
+   * @param _data
+   *          the payload, from position to limit
+   * @param _sourceAddress
+   *          the source address of this message, formatted as a {@code String}
+   */
+  public Message(ByteBuffer _data, String _sourceAddress) {
+    this(null, _data, _sourceAddress);
+  }
+
+  private Message(String _payload, ByteBuffer _data, String _sourceAddress) {
     this.payload = _payload;
+    this.data = _data;
     this.sourceAddress = _sourceAddress;
   }
 
+  /**
+   * Returns the payload as text, decoding it from UTF-8 only if it is carried
+   * as bytes. Handlers which deal with bytes should use {@link #bytes} instead.
+   * 
+   * @return the payload as a {@code String}
+   */
+  public String text() {
+    if (this.payload != null)
+      return this.payload;
+    if (this.data.hasArray())
+      return new String(this.data.array(),
+          this.data.arrayOffset() + this.data.position(), this.data.remaining(),
+          StandardCharsets.UTF_8);
+    return StandardCharsets.UTF_8.decode(this.data.duplicate()).toString();
+  }
+
+  /**
+   * Returns the payload as bytes, encoding it in UTF-8 only if it is carried
+   * as text. The returned buffer may be read without affecting this message.
+   * 
+   * @return the payload, from position to limit
+   */
+  public ByteBuffer bytes() {
+    if (this.data != null)
+      return this.data.duplicate();
+    return ByteBuffer.wrap(this.payload.getBytes(StandardCharsets.UTF_8));
+  }
+
   /**
    * Returns a string representation of this message.
    */
   @Override
   public String toString() {
-    return '"' + this.payload + "\" from " + this.sourceAddress;
+    return '"' + this.text() + "\" from " + this.sourceAddress;
   }
 
 }
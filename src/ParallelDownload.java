@@ -0,0 +1,415 @@
+import java.io.File;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * This class downloads a file over several concurrent connections, each one
+ * fetching a range of the file in chunked mode, all the ranges being written
+ * at their place in the same destination file. The connections may go to
+ * several FileServers holding the same file, so that their throughputs add
+ * up.
+ *
+ * The file is split into pieces, one per connection unless the file is large,
+ * taken in turn by the connections, so that a fast connection fetches more of
+ * them than a slow one. When no piece is left, an idle connection steals the
+ * second half of what remains of the range with the most bytes still to come,
+ * whose connection is told to stop there. As each range costs a connection,
+ * the pieces are large and the balance is left to the stealing.
+ *
+ * What a range misses when its connection ends, because the server does not
+ * answer, stalls, sends a chunk which fails its checksum or does not have the
+ * file, is fetched again, possibly from another server. A server which fails
+ * too often, or which announces another size, is not used any more.
+ *
+ * Each connection has a socket of its own: the HELLO of a server is not
+ * addressed to a connection yet, so connections opening at the same time on
+ * the same socket could take each other's.
+ */
+public class ParallelDownload {
+
+  /** The largest size of the pieces the file is split into. */
+  public static long PIECE_SIZE = 64 * 1024 * 1024;
+
+  /**
+   * The least number of bytes worth stealing, as each range costs a new
+   * connection.
+   */
+  public static long MIN_STEAL = 1024 * 1024;
+
+  /**
+   * How long a range may receive nothing before its connection is given up,
+   * in milliseconds.
+   */
+  public static long STALL_TIMEOUT = 15000;
+
+  /**
+   * How long a server may take to answer a new connection, in milliseconds,
+   * to be set as {@link ConnectedHandler#CONNECT_TIMEOUT}.
+   */
+  public static long CONNECT_TIMEOUT = 5000;
+
+  /** The number of failures in a row after which a server is not used. */
+  public static int MAX_FAILURES = 3;
+
+  /** How often the ranges are checked for stalls, in milliseconds. */
+  private static final long WATCH_PERIOD = 1000;
+
+  /** A FileServer holding the file. */
+  private static class Server {
+    final String address;
+    /** the following fields are guarded by the ParallelDownload */
+    int connections = 0;
+    int failures = 0;
+    boolean dead = false;
+    long received = 0;
+
+    Server(String _address) {
+      this.address = _address;
+    }
+  }
+
+  /** A range of the file, fetched by one connection. */
+  private static class Range {
+    final long start;
+    /** lowered when the end of the range is stolen */
+    volatile long end;
+    /** the receiver of the range, once its connection is open */
+    volatile FileHandler handler = null;
+    /** for the stall detection, guarded by the ParallelDownload */
+    long lastReceived = -1;
+    long progressedAt;
+
+    Range(long _start, long _end) {
+      this.start = _start;
+      this.end = _end;
+    }
+
+    /** @return the offset up to which the range has been received */
+    long received() {
+      FileHandler h = this.handler;
+      return h == null ? this.start : Math.max(this.start, h.getReceived());
+    }
+  }
+
+  private final String fileName;
+  private final String destDir;
+
+  /** The following fields are guarded by {@code this}. */
+  private Server[] servers;
+  private long size = -1;
+  private long pieceSize = PIECE_SIZE;
+  private boolean failed = false;
+  /** the start of the first piece not taken yet */
+  private long next = 0;
+  private final ArrayList<Range> active = new ArrayList<Range>();
+  /** what failed ranges missed, to be fetched first */
+  private final ArrayDeque<Range> missed = new ArrayDeque<Range>();
+  private Checkpoint checkpoint = null;
+  private int stolen = 0;
+  private int refetched = 0;
+  private int workers = 1;
+
+  /**
+   * Initializes a new parallel download.
+   *
+   * @param _fileName
+   *          the name of the file to download
+   * @param _destDir
+   *          the directory where to put the file
+   */
+  public ParallelDownload(String _fileName, String _destDir) {
+    this.fileName = _fileName;
+    this.destDir = _destDir;
+  }
+
+  /**
+   * Downloads the file from a single server, and waits for the end of the
+   * download.
+   *
+   * @param localPort
+   *          the port of the socket of the first connection, the following
+   *          ones taking the following ports
+   * @param server
+   *          the address of the FileServer, as host:port
+   * @param connections
+   *          the number of concurrent connections
+   * @return {@code true} if the whole file has been received
+   */
+  public boolean run(int localPort, String server, int connections) {
+    return run(localPort, new String[] { server }, connections);
+  }
+
+  /**
+   * Downloads the file from several servers, and waits for the end of the
+   * download. The connections are spread over the servers in turn.
+   *
+   * @param localPort
+   *          the port of the socket of the first connection, the following
+   *          ones taking the following ports
+   * @param addresses
+   *          the addresses of the FileServers, as host:port
+   * @param connections
+   *          the number of concurrent connections
+   * @return {@code true} if the whole file has been received
+   */
+  public boolean run(int localPort, String[] addresses, int connections) {
+    final Handler[] grounds = new Handler[Math.max(1, connections)];
+    try {
+      for (int i = 0; i < grounds.length; i++)
+        grounds[i] = new GroundHandler(localPort + i);
+    } catch (SocketException e) {
+      System.err.println(e.getMessage());
+      for (Handler ground : grounds)
+        if (ground != null)
+          ground.close();
+      return false;
+    }
+    // a new download, any previous checkpoint being stale
+    Checkpoint previous = Checkpoint.load(new File(this.destDir),
+        this.fileName);
+    if (previous != null)
+      previous.delete();
+    // the first piece tells the size of the file, and the others wait for it
+    final Range first = new Range(0, PIECE_SIZE);
+    synchronized (this) {
+      this.servers = new Server[addresses.length];
+      for (int i = 0; i < addresses.length; i++)
+        this.servers[i] = new Server(addresses[i]);
+      this.next = first.end;
+      this.active.add(first);
+      this.workers = grounds.length;
+    }
+    Thread[] workers = new Thread[grounds.length];
+    for (int i = 0; i < workers.length; i++) {
+      final Handler ground = grounds[i];
+      final Server server = this.servers[i % this.servers.length];
+      final Range initial = i == 0 ? first : null;
+      workers[i] = Threads.newThread(new Runnable() {
+        @SuppressWarnings("synthetic-access")
+        @Override
+        public void run() {
+          work(ground, server, initial);
+        }
+      }, "Download " + i + " of " + this.fileName);
+      workers[i].start();
+    }
+    try {
+      for (Thread worker : workers)
+        while (worker.isAlive()) {
+          worker.join(WATCH_PERIOD);
+          watch();
+        }
+    } catch (@SuppressWarnings("unused") InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (Handler ground : grounds)
+      ground.close();
+    synchronized (this) {
+      boolean complete = this.checkpoint != null
+          && this.checkpoint.isComplete();
+      if (complete)
+        this.checkpoint.delete();
+      StringBuilder report = new StringBuilder("file " + this.fileName
+          + (complete ? " received, " : " not received, ") + this.stolen
+          + " ranges stolen, " + this.refetched + " fetched again");
+      for (Server server : this.servers)
+        report.append(", ").append(server.received).append(" bytes from ")
+            .append(server.address).append(server.dead ? " (dead)" : "");
+      System.err.println(report);
+      return complete;
+    }
+  }
+
+  /** The loop of a connection, fetching ranges until none is left. */
+  private void work(Handler ground, Server initialServer, Range initial) {
+    Server server = initialServer;
+    Range range = initial;
+    try {
+      if (range == null)
+        range = take();
+      while (range != null) {
+        server = pick(server);
+        if (server == null) {
+          fail("no server left");
+          return;
+        }
+        fetch(ground, server, range);
+        range = take();
+      }
+    } catch (@SuppressWarnings("unused") InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Takes what a failed range has missed, or the next piece, or else steals
+   * the second half of what remains of the range with the most bytes to come.
+   *
+   * @return the range to fetch, or {@code null} if nothing is left to fetch
+   */
+  private synchronized Range take() throws InterruptedException {
+    while (true) {
+      if (this.failed)
+        return null;
+      Range range = this.missed.poll();
+      if (range != null) {
+        if (this.size >= 0)
+          range.end = Math.min(range.end, this.size);
+        if (range.end > range.start) {
+          this.active.add(range);
+          return range;
+        }
+        continue;
+      }
+      if (this.size >= 0) {
+        if (this.next < this.size) {
+          range = new Range(this.next, Math.min(this.next + this.pieceSize,
+              this.size));
+          this.next = range.end;
+          this.active.add(range);
+          return range;
+        }
+        range = steal();
+        if (range != null)
+          return range;
+        if (this.active.isEmpty())
+          return null;
+      }
+      // until the size is known, or a range misses something or ends
+      wait();
+    }
+  }
+
+  /** To be called while holding the lock. */
+  private Range steal() {
+    Range victim = null;
+    long most = 0;
+    for (Range r : this.active) {
+      long rest = r.end - r.received();
+      if (rest > most) {
+        most = rest;
+        victim = r;
+      }
+    }
+    if (victim == null || most < 2 * MIN_STEAL)
+      return null;
+    long middle = victim.end - most / 2;
+    Range range = new Range(middle, victim.end);
+    victim.end = middle;
+    if (victim.handler != null)
+      victim.handler.stopAt(middle);
+    this.stolen++;
+    this.active.add(range);
+    return range;
+  }
+
+  /**
+   * @return the specified server if still in use, or else the one with the
+   *         fewest connections, or {@code null} if none is left
+   */
+  private synchronized Server pick(Server current) {
+    if (!current.dead)
+      return current;
+    Server best = null;
+    for (Server server : this.servers)
+      if (!server.dead
+          && (best == null || server.connections < best.connections))
+        best = server;
+    return best;
+  }
+
+  private synchronized void fail(String reason) {
+    if (!this.failed)
+      System.err.println("download of " + this.fileName + " failed: "
+          + reason);
+    this.failed = true;
+    notifyAll();
+  }
+
+  /** Fetches a range over a connection of its own. */
+  private void fetch(Handler ground, Server server, Range range) {
+    synchronized (this) {
+      server.connections++;
+    }
+    ConnectedHandler connected = new ConnectedHandler(ground,
+        ConnectedHandler.getUniqueID(), server.address);
+    boolean disqualified = false;
+    if (connected.isConnected()) {
+      FileHandler handler;
+      String query;
+      synchronized (this) {
+        // the end of the range may be stolen until its query is sent
+        handler = new FileHandler(connected, this.destDir, this.checkpoint);
+        range.handler = handler;
+        range.progressedAt = System.currentTimeMillis();
+        query = "GET " + this.fileName + ' ' + range.start + ' '
+            + (range.end - range.start) + FileHandler.offers();
+      }
+      connected.send(query);
+      long announced = handler.awaitSize();
+      synchronized (this) {
+        // no such file, or another version of it, refused by the handler
+        if (announced < 0)
+          disqualified = !handler.isAborted();
+        else if (this.size < 0) {
+          this.size = announced;
+          // small enough pieces for every connection to have one, the first
+          // one included
+          this.pieceSize = Math.max(2 * MIN_STEAL, Math.min(PIECE_SIZE,
+              (announced + this.workers - 1) / this.workers));
+          range.end = Math.min(this.pieceSize, announced);
+          handler.stopAt(range.end);
+          this.next = range.end;
+          this.checkpoint = handler.getCheckpoint();
+          notifyAll();
+        }
+      }
+      if (disqualified)
+        handler.abort();
+      handler.letItGo();
+    } else
+      System.err.println(server.address + " does not answer");
+    connected.close();
+    synchronized (this) {
+      server.connections--;
+      this.active.remove(range);
+      long received = range.received();
+      long end = this.size < 0 ? range.end : Math.min(range.end, this.size);
+      server.received += Math.max(0, Math.min(received, end) - range.start);
+      if (received < end) {
+        this.missed.add(new Range(received, end));
+        this.refetched++;
+        if (disqualified || ++server.failures >= MAX_FAILURES) {
+          server.dead = true;
+          System.err.println(server.address + " is not used any more");
+        }
+      } else
+        server.failures = 0;
+      notifyAll();
+    }
+  }
+
+  /** Gives up the connections of the ranges which have stalled. */
+  private void watch() {
+    ArrayList<FileHandler> stalled = new ArrayList<FileHandler>();
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      for (Range range : this.active) {
+        long received = range.received();
+        if (received != range.lastReceived) {
+          range.lastReceived = received;
+          range.progressedAt = now;
+        } else if (range.handler != null
+            && now - range.progressedAt > STALL_TIMEOUT) {
+          stalled.add(range.handler);
+          range.progressedAt = now; // once
+        }
+      }
+    }
+    // not while holding the lock, as the file is flushed
+    for (FileHandler handler : stalled)
+      handler.abort();
+  }
+
+}
@@ -0,0 +1,130 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * This class defines a read-ahead stage for a file: blocks are read in
+ * advance by a thread of their own, so that the caller finds the next one
+ * ready instead of waiting on the disk.
+ *
+ * A fixed number of blocks is used over and over: the reader fills the free
+ * ones in the order of the file, and each block taken by the caller is given
+ * back to the reader when the caller takes the next one.
+ */
+public class ReadAhead {
+
+  /** The number of blocks read in advance. */
+  public static int BLOCKS = 4;
+
+  /** Queued after the last block, and for stopping the reader. */
+  private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+  private final FileChannel channel;
+  private final long start, end;
+  private final LinkedBlockingQueue<ByteBuffer> free = new LinkedBlockingQueue<ByteBuffer>();
+  private final LinkedBlockingQueue<ByteBuffer> filled = new LinkedBlockingQueue<ByteBuffer>();
+  private final Thread reader;
+
+  /** The first error of the reader thread, reported by {@link #next}. */
+  private volatile IOException failure = null;
+
+  /** The block last taken, by the caller only. */
+  private ByteBuffer current = null;
+
+  /**
+   * Initializes and starts a new read-ahead stage.
+   *
+   * @param _channel
+   *          the file to read, not closed by the stage
+   * @param _start
+   *          the offset of the first byte to read
+   * @param _end
+   *          the offset following the last byte to read
+   * @param blockSize
+   *          the size of the blocks
+   * @param name
+   *          the name of the reader thread
+   */
+  public ReadAhead(FileChannel _channel, long _start, long _end, int blockSize,
+      String name) {
+    this.channel = _channel;
+    this.start = _start;
+    this.end = _end;
+    // direct, so that the file is read without an intermediate copy
+    for (int i = 0; i < Math.max(1, BLOCKS); i++)
+      this.free.add(ByteBuffer.allocateDirect(blockSize));
+    this.reader = Threads.newThread(new Runnable() {
+      @SuppressWarnings("synthetic-access")
+      @Override
+      public void run() {
+        ReadAhead.this.work();
+      }
+    }, name);
+    this.reader.start();
+  }
+
+  /**
+   * Takes the next block of the file, giving back the previous one.
+   *
+   * @return the block, from its position to its limit, or {@code null} once
+   *         the end has been reached
+   * @throws IOException
+   *           if the file could not be read
+   */
+  public ByteBuffer next() throws IOException {
+    if (this.current != null) {
+      this.free.add(this.current);
+      this.current = null;
+    }
+    ByteBuffer block;
+    try {
+      block = this.filled.take();
+    } catch (@SuppressWarnings("unused") InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+    if (block == END) {
+      this.filled.add(END); // for the following calls
+      if (this.failure != null)
+        throw this.failure;
+      return null;
+    }
+    this.current = block;
+    return block;
+  }
+
+  /** Stops the reader, whether the end has been reached or not. */
+  public void close() {
+    this.free.add(END);
+  }
+
+  /** The loop of the reader thread. */
+  private void work() {
+    long offset = this.start;
+    try {
+      while (offset < this.end) {
+        ByteBuffer block = this.free.take();
+        if (block == END)
+          break;
+        block.clear();
+        block.limit((int) Math.min(block.capacity(), this.end - offset));
+        while (block.hasRemaining()
+            && this.channel.read(block, offset + block.position()) >= 0) {
+          // until the block is full or the end of the file
+        }
+        block.flip();
+        if (!block.hasRemaining())
+          break;
+        offset += block.remaining();
+        this.filled.add(block);
+      }
+    } catch (@SuppressWarnings("unused") InterruptedException e) {
+      // stopped
+    } catch (IOException e) {
+      this.failure = e;
+    }
+    this.filled.add(END);
+  }
+
+}
@@ -1,11 +1,18 @@
 import java.net.SocketException;
+import java.util.Arrays;
 
 public class ReceiverClient {
 
-  public static final String SYNTAX = "syntax : java ReceiverClient myPort serverHost:serverPort filename destDir";
+  public static final String SYNTAX = "syntax : java ReceiverClient myPort serverHost:serverPort[,serverHost:serverPort...] filename destDir [chunked [offset length] | parallel connections] [deflate]";
 
   public static void main(String[] args) {
-    if (args.length != 4) {
+    // compressed chunks offered, when the last argument is "deflate"
+    if (args.length > 4 && args[args.length - 1].equals("deflate")) {
+      FileHandler.COMPRESSION = true;
+      args = Arrays.copyOf(args, args.length - 1);
+    }
+    if (args.length != 4 && args.length != 5 && args.length != 6
+        && args.length != 7) {
       System.err.println(SYNTAX);
       return;
     }
@@ -17,8 +24,34 @@ public class ReceiverClient {
     }
     String filename = args[2];
     String destDir = args[3];
+    // binary chunks instead of text lines, when the fifth argument is
+    // "chunked", resuming any previous transfer, or only a part of the file
+    String query = "GET " + filename;
+    if (args.length > 4 && args[4].equals("chunked"))
+      query = args.length == 7
+          ? query + ' ' + args[5] + ' ' + args[6] + FileHandler.offers()
+          : FileHandler.chunkedQuery(destDir, filename);
 
     GroundLayer.RELIABILITY = 0.9;
+    // several servers holding the same file: one connection to each of them
+    // by default
+    String[] servers = args[1].split(",");
+    if (args.length == 6 && args[4].equals("parallel") || servers.length > 1) {
+      // chunked ranges over several connections, from myPort on
+      int connections = servers.length;
+      try {
+        if (args.length == 6 && args[4].equals("parallel"))
+          connections = Integer.parseInt(args[5]);
+      } catch (@SuppressWarnings("unused") NumberFormatException e) {
+        System.err.println(SYNTAX);
+      }
+      // so that a server which does not answer is given up
+      ConnectedHandler.CONNECT_TIMEOUT = ParallelDownload.CONNECT_TIMEOUT;
+      new ParallelDownload(filename, destDir).run(localPort, servers,
+          connections);
+      System.out.println("closing Receiver");
+      return;
+    }
     Handler ground = null;
     try {
       ground = new GroundHandler(localPort);
@@ -30,11 +63,11 @@ public class ReceiverClient {
         ConnectedHandler.getUniqueID(), args[1]);
     FileHandler fileHandler = new FileHandler(connected, destDir);
     // connect the two state machines
-    connected.send("GET " + filename);
+    connected.send(query);
     fileHandler.letItGo();
     System.out.println("closing Receiver");
     connected.close();
-    GroundLayer.close();
+    ground.close();
   }
 
 }
@@ -0,0 +1,109 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class defines a bounded, lock-free queue, backed by an array allocated
+ * once. Any number of threads may {@link #offer} concurrently; elements are
+ * normally taken by a single consumer, but {@link #poll} is safe for several
+ * ones too, so that a producer may discard the oldest element to make room.
+ *
+ * Every slot has a sequence number telling whether it is ready to be written
+ * for the turn of a producer, or ready to be read for the turn of a consumer
+ * (D. Vyukov's bounded queue). Producers and consumers only contend on a
+ * compare-and-set of their own counter.
+ *
+ * @param <E>
+ *          the type of the elements
+ */
+public class RingBuffer<E> {
+
+  private final Object[] elements;
+  private final AtomicLongArray sequences;
+  private final int mask;
+
+  /** The number of the next element to be written. */
+  private final AtomicLong tail = new AtomicLong();
+
+  /** The number of the next element to be read. */
+  private final AtomicLong head = new AtomicLong();
+
+  /**
+   * Initializes an empty ring buffer.
+   *
+   * @param _capacity
+   *          the maximum number of elements, rounded up to a power of two
+   */
+  public RingBuffer(int _capacity) {
+    int n = Integer.highestOneBit(Math.max(1, _capacity - 1)) << 1;
+    this.elements = new Object[n];
+    this.sequences = new AtomicLongArray(n);
+    for (int i = 0; i < n; i++)
+      this.sequences.set(i, i);
+    this.mask = n - 1;
+  }
+
+  /** @return the maximum number of elements */
+  public int capacity() {
+    return this.elements.length;
+  }
+
+  /**
+   * Inserts an element, if there is room for it.
+   *
+   * @param element
+   *          the element to insert, not {@code null}
+   * @return {@code false} if the buffer is full
+   */
+  public boolean offer(E element) {
+    long position = this.tail.get();
+    while (true) {
+      int index = (int) position & this.mask;
+      long difference = this.sequences.get(index) - position;
+      if (difference == 0) {
+        if (this.tail.compareAndSet(position, position + 1)) {
+          this.elements[index] = element;
+          // a volatile write, so that a consumer about to park sees it
+          this.sequences.set(index, position + 1);
+          return true;
+        }
+      } else if (difference < 0)
+        return false; // the slot has not been read yet for the previous turn
+      position = this.tail.get();
+    }
+  }
+
+  /**
+   * Removes the oldest element.
+   *
+   * @return the oldest element, or {@code null} if the buffer is empty
+   */
+  @SuppressWarnings("unchecked")
+  public E poll() {
+    long position = this.head.get();
+    while (true) {
+      int index = (int) position & this.mask;
+      long difference = this.sequences.get(index) - (position + 1);
+      if (difference == 0) {
+        if (this.head.compareAndSet(position, position + 1)) {
+          E element = (E) this.elements[index];
+          this.elements[index] = null;
+          this.sequences.lazySet(index, position + this.elements.length);
+          return element;
+        }
+      } else if (difference < 0)
+        return null; // the slot has not been written yet for this turn
+      position = this.head.get();
+    }
+  }
+
+  /** @return {@code true} if there is no element, at the time of the call */
+  public boolean isEmpty() {
+    return this.head.get() >= this.tail.get();
+  }
+
+  /** @return the number of elements, at the time of the call */
+  public int size() {
+    return (int) Math.max(0, this.tail.get() - this.head.get());
+  }
+
+}
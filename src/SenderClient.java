@@ -1,13 +1,19 @@
 import java.net.SocketException;
+import java.util.Arrays;
 
 public class SenderClient {
 
-  public static final String SYNTAX = "syntax : java SenderClient myPort serverHost:serverPort filename";
+  public static final String SYNTAX = "syntax : java SenderClient myPort serverHost:serverPort filename [chunked [offset length] [deflate]]";
 
 //  private static final long DELAY = 10;
 
   public static void main(String[] args) {
-    if (args.length != 3) {
+    // compressed chunks offered, when the last argument is "deflate"
+    if (args.length > 3 && args[args.length - 1].equals("deflate")) {
+      FileHandler.COMPRESSION = true;
+      args = Arrays.copyOf(args, args.length - 1);
+    }
+    if (args.length != 3 && args.length != 4 && args.length != 6) {
       System.err.println(SYNTAX);
       return;
     }
@@ -18,6 +24,12 @@ public class SenderClient {
       System.err.println(SYNTAX);
     }
     String filename = args[2];
+    // binary chunks instead of text lines, when the fourth argument is
+    // "chunked", or only a part of the file
+    String query = "GET " + filename;
+    if (args.length > 3 && args[3].equals("chunked"))
+      query += (args.length == 6 ? " " + args[4] + ' ' + args[5]
+          : " " + FileHandler.CHUNKED) + FileHandler.offers();
 
     GroundLayer.RELIABILITY = 0.9;
     Handler ground = null;
@@ -31,11 +43,11 @@ public class SenderClient {
         ConnectedHandler.getUniqueID(), args[1]);
     FileHandler fileHandler = new FileHandler(connected, ".");
     // connect the two state machines
-    fileHandler.handle(new Message("GET " + filename, "local"));
+    fileHandler.handle(new Message(query, "local"));
     fileHandler.letItGo();
     System.out.println("closing Sender");
     connected.close();
-    GroundLayer.close();
+    ground.close();
   }
 
 }
@@ -0,0 +1,91 @@
+import java.lang.reflect.Method;
+
+/**
+ * This class creates the threads of the handlers and of the applications, as
+ * platform threads or as virtual threads, depending on
+ * {@link Handler#EXECUTION}.
+ *
+ * Virtual threads are cheap enough for blocking-style code to be run by
+ * thousands, but they only exist from Java 21 on: they are looked up by
+ * reflection, and platform threads are used instead when they are missing.
+ */
+public class Threads {
+
+  /** {@code Thread.ofVirtual()}, or {@code null} if not available. */
+  private static final Method OF_VIRTUAL;
+
+  /** {@code Thread.Builder.name(String)} and {@code unstarted(Runnable)}. */
+  private static final Method NAME;
+  private static final Method UNSTARTED;
+
+  static {
+    Method ofVirtual = null, name = null, unstarted = null;
+    try {
+      Class<?> builder = Class.forName("java.lang.Thread$Builder");
+      ofVirtual = Thread.class.getMethod("ofVirtual");
+      name = builder.getMethod("name", String.class);
+      unstarted = builder.getMethod("unstarted", Runnable.class);
+    } catch (@SuppressWarnings("unused") ReflectiveOperationException e) {
+      ofVirtual = null;
+    }
+    OF_VIRTUAL = ofVirtual;
+    NAME = name;
+    UNSTARTED = unstarted;
+  }
+
+  /** So that the fallback is reported only once. */
+  private static volatile boolean warned = false;
+
+  private Threads() {
+    // static methods only
+  }
+
+  /** @return {@code true} if this Java runtime provides virtual threads */
+  public static boolean virtualThreadsAvailable() {
+    return OF_VIRTUAL != null;
+  }
+
+  /**
+   * Creates a thread, not started yet. It is a virtual thread if
+   * {@link Handler#EXECUTION} requests so and if the runtime allows it,
+   * otherwise a platform thread. Virtual threads are always daemon ones.
+   *
+   * @param task
+   *          the task to be run by the thread
+   * @param name
+   *          the name of the thread
+   * @return a new thread
+   */
+  public static Thread newThread(Runnable task, String name) {
+    if (Handler.EXECUTION == Handler.Execution.VIRTUAL_THREAD) {
+      if (OF_VIRTUAL != null)
+        try {
+          Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+          return (Thread) UNSTARTED.invoke(builder, task);
+        } catch (ReflectiveOperationException e) {
+          System.err.println("virtual thread not created: " + e);
+        }
+      else if (!warned) {
+        warned = true;
+        System.err.println("virtual threads need Java 21, using platform threads");
+      }
+    }
+    return new Thread(task, name);
+  }
+
+  /**
+   * Creates and starts a thread, see {@link #newThread}.
+   *
+   * @param task
+   *          the task to be run by the thread
+   * @param name
+   *          the name of the thread
+   * @return the started thread
+   */
+  public static Thread start(Runnable task, String name) {
+    Thread thread = newThread(task, name);
+    thread.start();
+    return thread;
+  }
+
+}
@@ -1,6 +1,3 @@
-import java.util.Timer;
-import java.util.TimerTask;
-
 /**
  * This class defines an implementation of a topmost {@link Handler} such as a
  * given message is periodically sent to the given destination.
@@ -8,17 +5,20 @@ import java.util.TimerTask;
  */
 class Ticker extends Handler {
 
-  /** A single Timer for all usages. Don't cancel it. **/
-  public static final Timer TIMER = new Timer("General Purpose Timer", true);
+  /** A single timing wheel for all usages. **/
+  public static final TimingWheel TIMER = TimingWheel.SHARED;
 
   /** An arbitrary base value for the numbering of tickers. **/
   private static int counter = 9000;
 
   /**
-   * The Timer task for the periodic sending of the message of this
-   * {@code Ticker}.
+   * The timeout for the periodic sending of the message of this
+   * {@code Ticker}, rescheduled by itself.
    */
-  private final TimerTask task;
+  private final TimingWheel.Timeout task;
+
+  /** Cleared by {@link #close}, so that the task stops rescheduling itself. */
+  private volatile boolean running = true;
 
   /**
    * Initializes a new ticker with the specified parameters
@@ -35,13 +35,16 @@ class Ticker extends Handler {
   public Ticker(final Handler _under, final String _destination,
       final String _message, int _period) {
     super(_under, ++counter, false);
-    this.task = new TimerTask() {
+    this.task = new TimingWheel.Timeout(new Runnable() {
       @Override
       public void run() {
+        if (!Ticker.this.running)
+          return;
+        TIMER.schedule(Ticker.this.task, _period);
         _under.send(_message, _destination);
       }
-    };
-    TIMER.schedule(this.task, 0, _period);
+    });
+    TIMER.schedule(this.task, 0);
   }
 
   /**
@@ -89,7 +92,8 @@ class Ticker extends Handler {
    */
   @Override
   public void close() {
-    this.task.cancel();
+    this.running = false;
+    TIMER.cancel(this.task);
     super.close();
   }
 
@@ -0,0 +1,230 @@
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class defines a hashed timing wheel, a scheduler whose
+ * {@link #schedule schedule} and {@link #cancel cancel} operations take a
+ * constant time, whatever the number of pending timeouts. Time is divided in
+ * ticks, and every pending {@link Timeout} is linked into the bucket of the tick
+ * at which it expires, modulo the size of the wheel; a timeout further than one
+ * turn of the wheel waits for the corresponding number of rounds.
+ *
+ * Timeouts are reusable handles: the same {@link Timeout} may be scheduled
+ * again and again, for instance by a periodic task or for every
+ * retransmission of a packet, without any allocation.
+ *
+ * Expired tasks are run by the single thread of the wheel, so they must return
+ * fast.
+ */
+public class TimingWheel {
+
+  /** A single wheel for all usages. Don't shut it down. **/
+  public static final TimingWheel SHARED = new TimingWheel(
+      "Shared Timing Wheel", 1, 1024);
+
+  /**
+   * A reusable handle on a task to be run once, when it expires. It may be
+   * scheduled again, from its own task or from anywhere else.
+   */
+  public static class Timeout {
+    private final Runnable task;
+    /* the following fields are guarded by the lock of the wheel */
+    private Timeout previous = null;
+    private Timeout next = null;
+    private int bucket = -1;
+    private long rounds;
+
+    /**
+     * @param _task
+     *          the task to run each time this timeout expires
+     */
+    public Timeout(Runnable _task) {
+      this.task = _task;
+    }
+  }
+
+  /** The duration of a tick, in nanoseconds. */
+  private final long tickDuration;
+
+  /** The heads of the lists of pending timeouts, one per tick of a turn. */
+  private final Timeout[] buckets;
+
+  /** The size of the wheel minus one, the size being a power of two. */
+  private final int mask;
+
+  /** The reference time of tick number 0. */
+  private final long startTime;
+
+  /** Guards every field below and the links of the pending timeouts. */
+  private final Object lock = new Object();
+
+  /** The number of the next tick to be processed. */
+  private long currentTick = 0;
+
+  /** The number of pending timeouts. */
+  private int pending = 0;
+
+  /** Reused by the thread of the wheel for collecting expired timeouts. */
+  private final ArrayList<Timeout> expired = new ArrayList<Timeout>();
+
+  private final Thread worker;
+
+  /**
+   * Initializes and starts a new timing wheel.
+   *
+   * @param name
+   *          the name of the thread of the wheel
+   * @param tickMillis
+   *          the duration of a tick, which is the precision of the wheel
+   * @param size
+   *          the number of ticks in a turn of the wheel, rounded up to a
+   *          power of two
+   */
+  public TimingWheel(String name, long tickMillis, int size) {
+    int n = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+    this.buckets = new Timeout[n];
+    this.mask = n - 1;
+    this.tickDuration = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+    this.startTime = System.nanoTime();
+    this.worker = new Worker(new Runnable() {
+      @SuppressWarnings("synthetic-access")
+      @Override
+      public void run() {
+        TimingWheel.this.work();
+      }
+    }, name);
+    this.worker.setDaemon(true);
+    this.worker.start();
+  }
+
+  /**
+   * @return {@code true} if the current thread is the one of a wheel, which
+   *         must not block
+   */
+  public static boolean inWheel() {
+    return Thread.currentThread() instanceof Worker;
+  }
+
+  /** The thread of a wheel, told apart by its class. */
+  private static class Worker extends Thread {
+    Worker(Runnable task, String name) {
+      super(task, name);
+    }
+  }
+
+  /**
+   * Schedules a timeout to expire after the specified delay. If it is already
+   * pending, it is first cancelled.
+   *
+   * @param timeout
+   *          the timeout to schedule
+   * @param delayMillis
+   *          the delay in milliseconds, 0 for the next tick
+   */
+  public void schedule(Timeout timeout, long delayMillis) {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+    synchronized (this.lock) {
+      unlink(timeout);
+      if (this.pending == 0) {
+        // nothing to expire meanwhile: the wheel may skip the idle ticks
+        long now = (System.nanoTime() - this.startTime) / this.tickDuration;
+        this.currentTick = Math.max(this.currentTick, now);
+      }
+      long target = (deadline - this.startTime + this.tickDuration - 1)
+          / this.tickDuration;
+      long ticks = Math.max(0, target - this.currentTick);
+      timeout.rounds = ticks / this.buckets.length;
+      timeout.bucket = (int) ((this.currentTick + ticks) & this.mask);
+      timeout.next = this.buckets[timeout.bucket];
+      if (timeout.next != null)
+        timeout.next.previous = timeout;
+      this.buckets[timeout.bucket] = timeout;
+      if (this.pending++ == 0)
+        this.lock.notify();
+    }
+  }
+
+  /**
+   * Cancels a timeout, if it is pending.
+   *
+   * @param timeout
+   *          the timeout to cancel
+   * @return {@code true} if it was pending
+   */
+  public boolean cancel(Timeout timeout) {
+    synchronized (this.lock) {
+      return unlink(timeout);
+    }
+  }
+
+  /**
+   * @param timeout
+   *          a timeout
+   * @return {@code true} if it is waiting to expire
+   */
+  public boolean isScheduled(Timeout timeout) {
+    synchronized (this.lock) {
+      return timeout.bucket >= 0;
+    }
+  }
+
+  /** To be called while holding the lock. */
+  private boolean unlink(Timeout timeout) {
+    if (timeout.bucket < 0)
+      return false;
+    if (timeout.previous != null)
+      timeout.previous.next = timeout.next;
+    else
+      this.buckets[timeout.bucket] = timeout.next;
+    if (timeout.next != null)
+      timeout.next.previous = timeout.previous;
+    timeout.previous = null;
+    timeout.next = null;
+    timeout.bucket = -1;
+    this.pending--;
+    return true;
+  }
+
+  /** The loop of the thread of the wheel. */
+  private void work() {
+    while (!Thread.currentThread().isInterrupted()) {
+      synchronized (this.lock) {
+        try {
+          if (this.pending == 0) {
+            this.lock.wait();
+            continue;
+          }
+          long wait = this.startTime + this.currentTick * this.tickDuration
+              - System.nanoTime();
+          if (wait > 0) {
+            TimeUnit.NANOSECONDS.timedWait(this.lock, wait);
+            continue;
+          }
+        } catch (@SuppressWarnings("unused") InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+        int index = (int) (this.currentTick & this.mask);
+        Timeout timeout = this.buckets[index];
+        while (timeout != null) {
+          Timeout next = timeout.next;
+          if (timeout.rounds-- <= 0) {
+            unlink(timeout);
+            this.expired.add(timeout);
+          }
+          timeout = next;
+        }
+        this.currentTick++;
+      }
+      for (Timeout timeout : this.expired)
+        try {
+          timeout.task.run();
+        } catch (RuntimeException e) {
+          System.err.println(this.worker.getName() + ": " + e);
+          e.printStackTrace();
+        }
+      this.expired.clear();
+    }
+  }
+
+}
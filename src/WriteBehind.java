@@ -0,0 +1,267 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class defines a write-behind stage for a file: writes are queued at
+ * once and done later by a thread of their own, which opens the file first,
+ * so that the caller never waits on the disk. The caller never waits for room
+ * either: the window advertised after {@link #getRoom} is what holds the
+ * sender back, and a write which would leave more than twice the limit
+ * pending is refused, rather than queued without end.
+ *
+ * Each write goes at its own offset, so data received out of order lands
+ * directly at its place. The writer takes all the queued writes at once, and
+ * writes each run of contiguous ones with a single gathering write.
+ */
+public class WriteBehind {
+
+  /** The number of bytes queued beyond which there is no room left. */
+  public static int MAX_PENDING = 16 * 1024 * 1024;
+
+  /** The number of bytes written between two flushes to the disk. */
+  public static long FLUSH_BYTES = 64 * 1024 * 1024;
+
+  /** A queued write. */
+  private static class Write {
+    final long offset;
+    final ByteBuffer data;
+    final int size;
+
+    Write(long _offset, ByteBuffer _data) {
+      this.offset = _offset;
+      this.data = _data;
+      this.size = _data == null ? 0 : _data.remaining();
+    }
+  }
+
+  /**
+   * Opens the file, and prepares it, on the writer thread, before the first
+   * write.
+   */
+  public interface Opening {
+    /**
+     * @param stage
+     *          the stage, whose {@link #checkpointTo} may be called
+     * @return the file to write, closed by {@link #close}
+     * @throws IOException
+     *           if the file cannot be opened or prepared, every write being
+     *           then ignored
+     */
+    FileChannel open(WriteBehind stage) throws IOException;
+  }
+
+  /** Queued by {@link #close}, after the last write. */
+  private static final Write END = new Write(-1, null);
+
+  /** Set by the writer thread, before the first write. */
+  private FileChannel channel = null;
+  private final LinkedBlockingQueue<Write> queue = new LinkedBlockingQueue<Write>();
+  private final int maxPending = MAX_PENDING;
+  /** The number of bytes queued and not written yet. */
+  private final AtomicLong pending = new AtomicLong();
+  private final Thread writer;
+
+  /** The number of bytes written, updated by the writer thread only. */
+  private volatile long written = 0;
+
+  /** Set by {@link #close}, after which writes are ignored. */
+  private volatile boolean closed = false;
+
+  /** The first error of the writer thread, reported by {@link #close}. */
+  private volatile IOException failure = null;
+
+  /** Where to record the data flushed to the disk, or {@code null}. */
+  private Checkpoint checkpoint = null;
+  /** The offset of the first write, then of the end of the data from it on. */
+  private long base, end;
+
+  /**
+   * Initializes and starts a new write-behind stage.
+   *
+   * @param opening
+   *          how to open the file to write, on the writer thread
+   * @param name
+   *          the name of the writer thread
+   */
+  public WriteBehind(Opening opening, String name) {
+    this.writer = Threads.newThread(new Runnable() {
+      @SuppressWarnings("synthetic-access")
+      @Override
+      public void run() {
+        try {
+          WriteBehind.this.channel = opening.open(WriteBehind.this);
+        } catch (IOException e) {
+          WriteBehind.this.failure = e;
+        }
+        WriteBehind.this.work();
+      }
+    }, name);
+    this.writer.start();
+  }
+
+  /**
+   * Gives a file its final size at once, so that it does not grow at every
+   * write. To be called by an {@link Opening}.
+   *
+   * @param channel
+   *          the file
+   * @param size
+   *          the final size of the file, in bytes
+   * @throws IOException
+   *           if the file cannot be extended
+   */
+  public static void preallocate(FileChannel channel, long size)
+      throws IOException {
+    if (size > channel.size())
+      channel.write(ByteBuffer.allocate(1), size - 1);
+    else if (size < channel.size())
+      channel.truncate(size);
+  }
+
+  /**
+   * Records in a checkpoint the data written from an offset on, each time it
+   * is flushed to the disk. To be called by an {@link Opening}.
+   *
+   * @param _checkpoint
+   *          the checkpoint of the file
+   * @param offset
+   *          the offset of the first write
+   */
+  public void checkpointTo(Checkpoint _checkpoint, long offset) {
+    this.checkpoint = _checkpoint;
+    this.base = offset;
+    this.end = offset;
+  }
+
+  /**
+   * Queues a write, without ever waiting. The data must not be modified
+   * afterwards.
+   *
+   * @param data
+   *          the bytes to write, from position to limit
+   * @param offset
+   *          where to write them in the file
+   * @return {@code false} if the write is refused, as it would leave more
+   *         than twice {@link #MAX_PENDING} bytes pending: the sender has not
+   *         kept to the room advertised
+   */
+  public boolean write(ByteBuffer data, long offset) {
+    if (this.closed)
+      return true; // ignored
+    Write write = new Write(offset, data);
+    if (this.pending.get() + write.size > 2L * this.maxPending)
+      return false;
+    this.pending.addAndGet(write.size);
+    this.queue.add(write);
+    return true;
+  }
+
+  /** @return the number of bytes which may still be queued */
+  public int getRoom() {
+    return (int) Math.max(0, this.maxPending - this.pending.get());
+  }
+
+  /** @return the number of bytes written to the file so far */
+  public long getWritten() {
+    return this.written;
+  }
+
+  /** The loop of the writer thread. */
+  private void work() {
+    ArrayList<Write> batch = new ArrayList<Write>();
+    ArrayList<ByteBuffer> run = new ArrayList<ByteBuffer>();
+    long unflushed = 0;
+    boolean end = false;
+    while (!end) {
+      try {
+        batch.add(this.queue.take());
+      } catch (@SuppressWarnings("unused") InterruptedException e) {
+        break;
+      }
+      this.queue.drainTo(batch);
+      int i = 0;
+      while (i < batch.size()) {
+        Write first = batch.get(i);
+        if (first == END) {
+          end = true;
+          break;
+        }
+        // gather the following writes which are contiguous with this one
+        int start = i;
+        long length = 0;
+        for (; i < batch.size() && batch.get(i) != END
+            && batch.get(i).offset == first.offset + length; i++) {
+          run.add(batch.get(i).data);
+          length += batch.get(i).size;
+        }
+        try {
+          if (this.failure == null) {
+            this.channel.position(first.offset);
+            ByteBuffer[] buffers = run.toArray(new ByteBuffer[run.size()]);
+            long remaining = length;
+            while (remaining > 0)
+              remaining -= this.channel.write(buffers);
+            this.written += length;
+            unflushed += length;
+            if (first.offset <= this.end)
+              this.end = Math.max(this.end, first.offset + length);
+            if (unflushed >= FLUSH_BYTES) {
+              this.channel.force(false);
+              unflushed = 0;
+              checkpoint();
+            }
+          }
+        } catch (IOException e) {
+          this.failure = e;
+        }
+        this.pending.addAndGet(-length);
+        run.clear();
+      }
+      batch.clear();
+    }
+  }
+
+  /** Records the data written so far, once flushed to the disk. */
+  private void checkpoint() {
+    if (this.checkpoint != null)
+      try {
+        this.checkpoint.update(this.base, this.end);
+      } catch (IOException e) {
+        // the transfer goes on, only its resumption is compromised
+        System.err.println(e);
+      }
+  }
+
+  /**
+   * Waits for the queued writes to be done, flushes the file to the disk and
+   * closes it.
+   *
+   * @throws IOException
+   *           if a write, the flush or the closing failed
+   */
+  public void close() throws IOException {
+    this.closed = true;
+    this.queue.add(END);
+    try {
+      this.writer.join();
+    } catch (@SuppressWarnings("unused") InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    try {
+      if (this.failure == null) {
+        this.channel.force(false);
+        checkpoint();
+      }
+    } finally {
+      if (this.channel != null)
+        this.channel.close();
+    }
+    if (this.failure != null)
+      throw this.failure;
+  }
+
+}